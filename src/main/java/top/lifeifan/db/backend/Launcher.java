@@ -47,7 +47,8 @@ public class Launcher {
         TransactionManager tm = TransactionManager.create(path);
         DataManager dm = DataManager.create(path, DEFAULT_MEM, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager.create(path, vm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        tbm.close();
         tm.close();
         dm.close();
     }
@@ -58,6 +59,9 @@ public class Launcher {
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
         new Server(port, tbm).start();
+        tbm.close();
+        tm.close();
+        dm.close();
     }
 
     private static long parseMem(String memStr) {
@@ -1,16 +1,30 @@
 package top.lifeifan.db.backend.common;
 
-import top.lifeifan.db.backend.utils.Panic;
-import top.lifeifan.db.common.Error;
+import top.lifeifan.db.common.OperationFailException;
 
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * 引用计数策略的缓存实现
+ *
+ * 缓存项保存在 ConcurrentHashMap 中，同一个 key 的增删和引用计数修改都在 compute 内完成，
+ * 不同 key 之间不再争用同一把全局锁。
+ * 正在加载的资源以 future 的形式放入缓存，其他请求同一资源的线程直接等待该 future，
+ * 而不是 sleep 轮询。
+ * 写回、移出和 applyIfUnpinned 可能阻塞，不在 compute 内执行：compute 中只把缓存项标记为 busy，
+ * 操作在 compute 返回后进行，期间请求该资源的线程等待 busy 完成后重试。
+ *
+ * 未指定淘汰策略时，资源在引用数归零后立即被释放；
+ * 指定了淘汰策略时，引用数归零的资源仍然留在缓存中，缓存满时由策略选出一个淘汰。
+ * 每个缓存各自统计命中、未命中、淘汰、加载耗时和等待耗时，通过 getStats 获取，
+ * 并由 CacheMonitor 注册为 JMX MBean。
  * @author lifeifan
  * @since 2023-02-03
  * @param <T> 数据
@@ -21,77 +35,173 @@ public abstract class AbstractCache <T>{
 
     protected abstract void releaseForCache(T obj);
 
-    // 实际缓存的数据
-    private Map<Long, T> cache;
-    // 资源的引用个数
-    private Map<Long, Integer> references;
-    // 正在被获取的资源
-    private Map<Long, Boolean> getting;
+    /**
+     * 缓存项
+     */
+    private static class Holder<T> {
+        // 资源加载完成后 complete，加载失败则 completeExceptionally
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        // 资源的引用个数，只在 cache 的 compute 中修改
+        int references;
+        // 非空表示资源正在被独占操作（写回后移出缓存，或 applyIfUnpinned），操作完成后 complete，
+        // 只在 compute 中读写
+        CompletableFuture<Void> busy;
+        // busy 的操作是否是移出缓存
+        boolean removing;
+    }
+
+    // 实际缓存的数据（包括正在被获取的资源）
+    private final ConcurrentHashMap<Long, Holder<T>> cache;
 
     // 缓存中的最大缓存资源数
-    private int maxResource;
+    private final int maxResource;
     // 缓存中元素的个数
-    private int count = 0;
+    private final AtomicInteger count;
+    // 淘汰策略，为 null 时不保留引用数为零的资源
+    private final EvictionPolicy policy;
 
-    private Lock lock;
+    // 命中、未命中和淘汰的次数，预读不计入
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    // 加载的次数和耗时
+    private final LongAdder loads;
+    private final LongAdder loadNanos;
+    // 正在加载的资源数
+    private final AtomicInteger loading;
+    // 等待其他线程加载的次数和耗时
+    private final LongAdder waits;
+    private final LongAdder waitNanos;
 
     public AbstractCache(int maxResource) {
+        this(maxResource, null);
+    }
+
+    public AbstractCache(int maxResource, EvictionPolicy policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.policy = policy;
+        this.cache = new ConcurrentHashMap<>();
+        this.count = new AtomicInteger(0);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        this.loads = new LongAdder();
+        this.loadNanos = new LongAdder();
+        this.loading = new AtomicInteger(0);
+        this.waits = new LongAdder();
+        this.waitNanos = new LongAdder();
+        CacheMonitor.register(this);
     }
 
     public T get(long key) throws Exception {
+        return get(key, true);
+    }
+
+    /**
+     * @param record 是否计入命中统计
+     */
+    private T get(long key, boolean record) throws Exception {
         while (true) {
-            lock.lock();
-            if (getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            // created[0] 非空表示由当前线程负责加载
+            @SuppressWarnings("unchecked")
+            Holder<T>[] created = new Holder[1];
+            @SuppressWarnings("unchecked")
+            CompletableFuture<Void>[] busy = new CompletableFuture[1];
+            Holder<T> holder = cache.compute(key, (k, h) -> {
+                if (h == null) {
+                    if (!reserve()) {
+                        return null;
+                    }
+                    h = new Holder<>();
+                    created[0] = h;
+                } else if (h.busy != null) {
+                    busy[0] = h.busy;
+                    return h;
+                }
+                h.references++;
+                if (policy != null) {
+                    policy.access(k);
+                }
+                return h;
+            });
+            if (holder == null) {
+                // 缓存已满：淘汰一个未被引用的资源后重试
+                if (policy != null && evict()) {
                     continue;
                 }
+                throw OperationFailException.CacheFullException;
+            }
+            if (busy[0] != null) {
+                // 等待写回或其他独占操作完成后重试
+                busy[0].join();
                 continue;
             }
-            if (cache.containsKey(key)) {
-                // 资源在缓存中，且没有被其他线程正在获取
-                T value = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return value;
+            if (created[0] != null) {
+                if (record) {
+                    misses.increment();
+                }
+                return load(key, holder);
+            }
+            if (record) {
+                hits.increment();
             }
+            try {
+                // 资源已在缓存中，或正在被其他线程获取
+                if (holder.future.isDone()) {
+                    return holder.future.join();
+                }
+                long start = System.nanoTime();
+                try {
+                    return holder.future.join();
+                } finally {
+                    waits.increment();
+                    waitNanos.add(System.nanoTime() - start);
+                }
+            } catch (CompletionException e) {
+                // 其他线程获取失败，失败的缓存项已被移除，重新尝试
+            }
+        }
+    }
 
-            // 尝试获取资源
-            if (maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                Panic.panic(Error.CacheFullException);
+    /**
+     * 为新资源占用一个缓存位置
+     * @return 缓存已满时返回 false
+     */
+    private boolean reserve() {
+        if (maxResource <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int c = count.get();
+            if (c >= maxResource) {
+                return false;
+            }
+            if (count.compareAndSet(c, c + 1)) {
+                return true;
             }
-            count++;
-            getting.put(key, true);
-            lock.unlock();
-            break;
         }
+    }
 
-        T value = null;
+    private T load(long key, Holder<T> holder) throws Exception {
+        T value;
+        long start = System.nanoTime();
+        loading.incrementAndGet();
         try {
             value = getForCache(key);
         } catch (Exception e) {
-            lock.lock();
-            count--;
-            getting.remove(key);
-            lock.unlock();
+            if (cache.remove(key, holder) && policy != null) {
+                policy.remove(key);
+            }
+            count.decrementAndGet();
+            holder.future.completeExceptionally(e);
             throw e;
+        } finally {
+            loading.decrementAndGet();
+            loads.increment();
+            loadNanos.add(System.nanoTime() - start);
         }
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, value);
-        references.put(key, 1);
-        lock.unlock();
-
+        holder.future.complete(value);
         return value;
     }
 
@@ -100,38 +210,200 @@ public abstract class AbstractCache <T>{
      * @param key key
      */
     public void release(long key) {
-        lock.lock();
+        @SuppressWarnings("unchecked")
+        Holder<T>[] removing = new Holder[1];
+        cache.computeIfPresent(key, (k, h) -> {
+            if (--h.references > 0) {
+                return h;
+            }
+            if (policy != null) {
+                // 留在缓存中，等待被淘汰
+                policy.unpin(k);
+                return h;
+            }
+            markRemoving(h);
+            removing[0] = h;
+            return h;
+        });
+        if (removing[0] != null) {
+            remove(key, removing[0]);
+        }
+    }
+
+    private void markRemoving(Holder<T> h) {
+        h.busy = new CompletableFuture<>();
+        h.removing = true;
+    }
+
+    /**
+     * 写回已标记为移出的资源，写回完成后才从 cache 中删除，保证写回完成前同一 key 不会被重新加载
+     */
+    private void remove(long key, Holder<T> h) {
         try {
-            int ref = references.get(key) - 1;
-            if (ref == 0) {
-                T value = cache.get(key);
-                releaseForCache(value);
-                references.remove(key);
-                cache.remove(key);
-                count--;
-            } else {
-                references.put(key, ref);
-            }
-         } finally {
-            lock.unlock();
+            releaseForCache(h.future.join());
+        } finally {
+            cache.remove(key, h);
+            count.decrementAndGet();
+            h.busy.complete(null);
         }
     }
 
     /**
-     * 关闭缓存
+     * 按淘汰策略移出一个引用数为零的资源
+     * @return 所有资源都在被引用时返回 false
      */
-    protected void close() {
-        lock.lock();
+    private boolean evict() {
+        while (true) {
+            Long victim = policy.evict();
+            if (victim == null) {
+                return false;
+            }
+            @SuppressWarnings("unchecked")
+            Holder<T>[] removing = new Holder[1];
+            cache.computeIfPresent(victim, (k, h) -> {
+                if (h.references > 0 || !h.future.isDone() || h.busy != null) {
+                    // 选出之后又被引用了，或正在被 applyIfUnpinned 操作，放回策略中
+                    if (!h.removing) {
+                        policy.access(k);
+                        if (h.references == 0 && h.future.isDone()) {
+                            policy.unpin(k);
+                        }
+                    }
+                    return h;
+                }
+                markRemoving(h);
+                policy.remove(k);
+                removing[0] = h;
+                return h;
+            });
+            if (removing[0] != null) {
+                remove(victim, removing[0]);
+                evictions.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 立即移出一个未被引用的资源，写回完成后返回
+     * @param key key
+     * @return 资源不在缓存中或已被移出时返回 true，正在被引用、加载或被其他线程操作时返回 false
+     */
+    protected boolean discard(long key) {
+        @SuppressWarnings("unchecked")
+        Holder<T>[] removing = new Holder[1];
+        boolean[] absent = {true};
+        cache.computeIfPresent(key, (k, h) -> {
+            if (h.references > 0 || !h.future.isDone() || h.busy != null) {
+                absent[0] = false;
+                return h;
+            }
+            markRemoving(h);
+            if (policy != null) {
+                policy.remove(k);
+            }
+            removing[0] = h;
+            return h;
+        });
+        if (removing[0] != null) {
+            remove(key, removing[0]);
+        }
+        return absent[0];
+    }
+
+    /**
+     * 资源不在缓存中时将其加载进缓存但不引用，用于预读
+     * 只对指定了淘汰策略的缓存有意义，否则资源加载后会立即被释放
+     * @param key key
+     * @return 资源已在缓存中、缓存已满或加载失败时返回 false
+     */
+    protected boolean preload(long key) {
+        if (cache.containsKey(key)) {
+            return false;
+        }
         try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T value = cache.get(key);
-                releaseForCache(value);
-                references.remove(key);
-                cache.remove(key);
+            get(key, false);
+        } catch (Exception e) {
+            return false;
+        }
+        release(key);
+        return true;
+    }
+
+    /**
+     * 遍历缓存中已加载完成的资源，遍历结果是弱一致的，只用于挑选后台任务的候选对象
+     * @param action 对每个资源执行的操作
+     */
+    protected void forEachResident(BiConsumer<Long, T> action) {
+        for (Map.Entry<Long, Holder<T>> entry : cache.entrySet()) {
+            CompletableFuture<T> future = entry.getValue().future;
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                action.accept(entry.getKey(), future.join());
             }
+        }
+    }
+
+    /**
+     * 在资源未被引用时对其执行 action，执行期间该资源不会被获取或淘汰
+     * @param key key
+     * @param action 操作
+     * @return 资源不在缓存中或正在被引用时返回 false
+     */
+    protected boolean applyIfUnpinned(long key, Consumer<T> action) {
+        @SuppressWarnings("unchecked")
+        Holder<T>[] marked = new Holder[1];
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Void>[] busy = new CompletableFuture[1];
+        cache.computeIfPresent(key, (k, h) -> {
+            if (h.references == 0 && h.busy == null
+                    && h.future.isDone() && !h.future.isCompletedExceptionally()) {
+                h.busy = new CompletableFuture<>();
+                busy[0] = h.busy;
+                marked[0] = h;
+            }
+            return h;
+        });
+        Holder<T> holder = marked[0];
+        if (holder == null) {
+            return false;
+        }
+        try {
+            action.accept(holder.future.join());
         } finally {
-            lock.unlock();
+            cache.computeIfPresent(key, (k, h) -> {
+                if (h == holder) {
+                    h.busy = null;
+                }
+                return h;
+            });
+            busy[0].complete(null);
+        }
+        return true;
+    }
+
+    /**
+     * @return 当前的命中统计
+     */
+    public CacheStats getStats() {
+        return new CacheStats(getClass().getSimpleName(), hits.sum(), misses.sum(), evictions.sum(),
+                count.get(), maxResource, loads.sum(), loadNanos.sum(), loading.get(), waits.sum(), waitNanos.sum());
+    }
+
+    /**
+     * 关闭缓存
+     */
+    protected void close() {
+        CacheMonitor.unregister(this);
+        for (Map.Entry<Long, Holder<T>> entry : cache.entrySet()) {
+            CompletableFuture<T> future = entry.getValue().future;
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                releaseForCache(future.join());
+            }
+            if (policy != null) {
+                policy.remove(entry.getKey());
+            }
         }
+        cache.clear();
+        count.set(0);
     }
 }
@@ -0,0 +1,34 @@
+package top.lifeifan.db.backend.common;
+
+/**
+ * 缓存统计的 JMX 接口，每个缓存实例对应一个 MBean
+ * ObjectName 为 top.lifeifan.db:type=Cache,name=缓存类名,id=编号
+ * @author lifeifan
+ * @since 2023-03-29
+ */
+public interface CacheMXBean {
+
+    String getName();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+
+    long getEvictions();
+
+    int getResident();
+
+    int getCapacity();
+
+    long getLoads();
+
+    double getAvgLoadMicros();
+
+    int getInFlightLoads();
+
+    long getWaits();
+
+    double getAvgWaitMicros();
+}
@@ -0,0 +1,195 @@
+package top.lifeifan.db.backend.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存监控
+ *
+ * 每个 AbstractCache 创建时登记到这里并注册为 JMX MBean，关闭时注销。
+ * 只弱引用缓存：未关闭就被丢弃的缓存（如崩溃后在同一进程内重启）在下一次登记时清理掉。
+ * 注册 MBean 失败只影响监控，不影响缓存本身。
+ * @author lifeifan
+ * @since 2023-03-29
+ */
+@Slf4j
+public class CacheMonitor {
+
+    private static final String DOMAIN = "top.lifeifan.db";
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(0);
+    // 按登记顺序排列
+    private static final Map<Integer, View> VIEWS = new ConcurrentSkipListMap<>();
+
+    private static class View implements CacheMXBean {
+        final int id;
+        final WeakReference<AbstractCache<?>> cache;
+        ObjectName objectName;
+
+        View(int id, AbstractCache<?> cache) {
+            this.id = id;
+            this.cache = new WeakReference<>(cache);
+        }
+
+        CacheStats stats() {
+            AbstractCache<?> c = cache.get();
+            return c == null ? null : c.getStats();
+        }
+
+        private CacheStats current() {
+            CacheStats s = stats();
+            return s == null ? new CacheStats("", 0, 0, 0, 0, 0, 0, 0, 0, 0, 0) : s;
+        }
+
+        @Override
+        public String getName() {
+            return current().getName() + "#" + id;
+        }
+
+        @Override
+        public long getHits() {
+            return current().getHits();
+        }
+
+        @Override
+        public long getMisses() {
+            return current().getMisses();
+        }
+
+        @Override
+        public double getHitRate() {
+            return current().getHitRate();
+        }
+
+        @Override
+        public long getEvictions() {
+            return current().getEvictions();
+        }
+
+        @Override
+        public int getResident() {
+            return current().getResident();
+        }
+
+        @Override
+        public int getCapacity() {
+            return current().getCapacity();
+        }
+
+        @Override
+        public long getLoads() {
+            return current().getLoads();
+        }
+
+        @Override
+        public double getAvgLoadMicros() {
+            return current().getAvgLoadMicros();
+        }
+
+        @Override
+        public int getInFlightLoads() {
+            return current().getInFlightLoads();
+        }
+
+        @Override
+        public long getWaits() {
+            return current().getWaits();
+        }
+
+        @Override
+        public double getAvgWaitMicros() {
+            return current().getAvgWaitMicros();
+        }
+    }
+
+    static void register(AbstractCache<?> cache) {
+        removeCollected();
+        View view = new View(NEXT_ID.incrementAndGet(), cache);
+        VIEWS.put(view.id, view);
+        try {
+            view.objectName = new ObjectName(DOMAIN + ":type=Cache,name="
+                    + cache.getClass().getSimpleName() + ",id=" + view.id);
+            mBeanServer().registerMBean(view, view.objectName);
+        } catch (JMException e) {
+            log.warn("register cache mbean failed: " + e.getMessage());
+        }
+    }
+
+    static void unregister(AbstractCache<?> cache) {
+        Iterator<View> it = VIEWS.values().iterator();
+        while (it.hasNext()) {
+            View view = it.next();
+            if (view.cache.get() == cache) {
+                it.remove();
+                unregisterMBean(view);
+            }
+        }
+    }
+
+    /**
+     * @return 所有未关闭的缓存的统计，按创建顺序排列
+     */
+    public static List<CacheStats> snapshot() {
+        List<CacheStats> res = new ArrayList<>();
+        for (View view : VIEWS.values()) {
+            CacheStats s = view.stats();
+            if (s != null) {
+                s.setName(s.getName() + "#" + view.id);
+                res.add(s);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * 每个缓存一行的统计报告
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (CacheStats s : snapshot()) {
+            sb.append(String.format("%s hits=%d misses=%d hitRate=%.2f%% evictions=%d resident=%d/%s "
+                            + "loads=%d avgLoad=%.1fus inFlight=%d waits=%d avgWait=%.1fus\n",
+                    s.getName(), s.getHits(), s.getMisses(), s.getHitRate() * 100, s.getEvictions(),
+                    s.getResident(), s.getCapacity() > 0 ? String.valueOf(s.getCapacity()) : "unbounded",
+                    s.getLoads(), s.getAvgLoadMicros(), s.getInFlightLoads(), s.getWaits(), s.getAvgWaitMicros()));
+        }
+        return sb.toString();
+    }
+
+    private static void removeCollected() {
+        Iterator<View> it = VIEWS.values().iterator();
+        while (it.hasNext()) {
+            View view = it.next();
+            if (view.cache.get() == null) {
+                it.remove();
+                unregisterMBean(view);
+            }
+        }
+    }
+
+    private static void unregisterMBean(View view) {
+        if (view.objectName == null) {
+            return;
+        }
+        try {
+            mBeanServer().unregisterMBean(view.objectName);
+        } catch (JMException e) {
+            log.warn("unregister cache mbean failed: " + e.getMessage());
+        }
+    }
+
+    private static MBeanServer mBeanServer() {
+        return ManagementFactory.getPlatformMBeanServer();
+    }
+}
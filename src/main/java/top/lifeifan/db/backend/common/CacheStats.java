@@ -0,0 +1,66 @@
+package top.lifeifan.db.backend.common;
+
+import lombok.Data;
+
+/**
+ * 缓存命中情况的快照
+ * @author lifeifan
+ * @since 2023-03-27
+ */
+@Data
+public class CacheStats {
+    // 缓存的名称
+    private String name;
+    // 命中缓存的次数
+    private long hits;
+    // 未命中、需要加载的次数
+    private long misses;
+    // 被淘汰的资源数
+    private long evictions;
+    // 当前缓存中的资源数
+    private int resident;
+    // 最大缓存资源数，0 表示不限制
+    private int capacity;
+    // 加载资源的次数（包括预读）和总耗时，纳秒
+    private long loads;
+    private long loadNanos;
+    // 正在加载的资源数
+    private int inFlightLoads;
+    // 等待其他线程加载同一资源的次数和总耗时，纳秒
+    private long waits;
+    private long waitNanos;
+
+    public CacheStats(String name, long hits, long misses, long evictions, int resident, int capacity,
+                      long loads, long loadNanos, int inFlightLoads, long waits, long waitNanos) {
+        this.name = name;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.resident = resident;
+        this.capacity = capacity;
+        this.loads = loads;
+        this.loadNanos = loadNanos;
+        this.inFlightLoads = inFlightLoads;
+        this.waits = waits;
+        this.waitNanos = waitNanos;
+    }
+
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return 平均每次加载的耗时，微秒
+     */
+    public double getAvgLoadMicros() {
+        return loads == 0 ? 0 : loadNanos / 1000.0 / loads;
+    }
+
+    /**
+     * @return 平均每次等待的耗时，微秒
+     */
+    public double getAvgWaitMicros() {
+        return waits == 0 ? 0 : waitNanos / 1000.0 / waits;
+    }
+}
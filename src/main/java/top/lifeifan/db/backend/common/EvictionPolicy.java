@@ -0,0 +1,37 @@
+package top.lifeifan.db.backend.common;
+
+/**
+ * 缓存淘汰策略
+ *
+ * AbstractCache 在资源被引用时调用 access，引用数归零时调用 unpin，
+ * 缓存满时通过 evict 选出一个引用数为零的资源淘汰。
+ * 实现类需要自行保证线程安全。
+ * @author lifeifan
+ * @since 2023-03-12
+ */
+public interface EvictionPolicy {
+
+    /**
+     * 资源被引用（首次加载或命中），引用期间不可被淘汰
+     * @param key key
+     */
+    void access(long key);
+
+    /**
+     * 资源的引用数归零，可以被淘汰
+     * @param key key
+     */
+    void unpin(long key);
+
+    /**
+     * 选出一个可以淘汰的资源，并将其从策略中移除
+     * @return 被选中的 key，没有可淘汰的资源时返回 null
+     */
+    Long evict();
+
+    /**
+     * 资源已被移出缓存
+     * @param key key
+     */
+    void remove(long key);
+}
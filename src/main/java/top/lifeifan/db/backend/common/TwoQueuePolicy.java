@@ -0,0 +1,130 @@
+package top.lifeifan.db.backend.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * 2Q 淘汰策略
+ *
+ * 资源分三个队列管理：
+ *  a1in：首次访问的资源，先进先出，容量约为缓存的四分之一
+ *  a1out：从 a1in 淘汰出去的资源的 key，只记录 key 不占用缓存
+ *  am：热点资源，按最近访问排序
+ * 首次访问的资源进入 a1in，在 a1in 中再次被访问不会提升（短时间内的连续访问视为一次）；
+ * 被淘汰后在 a1out 的记录期内再次被访问，才进入 am。
+ * 淘汰时 a1in 超出容量就从 a1in 淘汰，否则淘汰 am 中最久未访问的。
+ * 全表扫描只会在 a1in 中流过，不会挤出 am 中的 B+ 树内部节点等热点页面。
+ * @author lifeifan
+ * @since 2023-03-27
+ */
+public class TwoQueuePolicy implements EvictionPolicy {
+
+    private static class Frame {
+        boolean hot;
+        boolean evictable;
+    }
+
+    private final int a1inLimit;
+    private final int a1outLimit;
+
+    // 按进入顺序排列
+    private final LinkedHashMap<Long, Frame> a1in = new LinkedHashMap<>();
+    private final LinkedHashSet<Long> a1out = new LinkedHashSet<>();
+    // 按访问顺序排列，最久未访问的在前
+    private final LinkedHashMap<Long, Frame> am = new LinkedHashMap<>();
+
+    /**
+     * @param capacity 缓存的容量
+     */
+    public TwoQueuePolicy(int capacity) {
+        this.a1inLimit = Math.max(1, capacity / 4);
+        this.a1outLimit = Math.max(1, capacity / 2);
+    }
+
+    @Override
+    public synchronized void access(long key) {
+        Frame f = am.remove(key);
+        if (f != null) {
+            am.put(key, f);
+        } else {
+            f = a1in.get(key);
+        }
+        if (f == null) {
+            f = new Frame();
+            if (a1out.remove(key)) {
+                f.hot = true;
+                am.put(key, f);
+            } else {
+                a1in.put(key, f);
+            }
+        }
+        f.evictable = false;
+    }
+
+    @Override
+    public synchronized void unpin(long key) {
+        Frame f = frame(key);
+        if (f != null) {
+            f.evictable = true;
+        }
+    }
+
+    @Override
+    public synchronized Long evict() {
+        Long victim;
+        if (a1in.size() > a1inLimit) {
+            victim = evictFrom(a1in);
+            if (victim == null) {
+                victim = evictFrom(am);
+            }
+        } else {
+            victim = evictFrom(am);
+            if (victim == null) {
+                victim = evictFrom(a1in);
+            }
+        }
+        return victim;
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        if (am.remove(key) == null) {
+            a1in.remove(key);
+        }
+    }
+
+    /**
+     * 淘汰队列中最靠前的未被引用的资源，从 a1in 淘汰的记入 a1out
+     */
+    private Long evictFrom(LinkedHashMap<Long, Frame> queue) {
+        Iterator<Map.Entry<Long, Frame>> it = queue.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Frame> e = it.next();
+            if (!e.getValue().evictable) {
+                continue;
+            }
+            it.remove();
+            if (!e.getValue().hot) {
+                remember(e.getKey());
+            }
+            return e.getKey();
+        }
+        return null;
+    }
+
+    private void remember(long key) {
+        a1out.add(key);
+        if (a1out.size() > a1outLimit) {
+            Iterator<Long> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    private Frame frame(long key) {
+        Frame f = am.get(key);
+        return f != null ? f : a1in.get(key);
+    }
+}
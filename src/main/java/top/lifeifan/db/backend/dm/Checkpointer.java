@@ -0,0 +1,127 @@
+package top.lifeifan.db.backend.dm;
+
+import top.lifeifan.db.backend.utils.Panic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台检查点线程
+ *
+ * 每隔 interval 毫秒检查一次，上一个检查点之后写入的日志超过 logSize 字节时做一次检查点，
+ * 检查点之前的日志段随即被删除，日志占用的空间和崩溃恢复需要读取的日志量都不超过 logSize 的量级。
+ * @author lifeifan
+ * @since 2023-04-03
+ */
+class Checkpointer {
+
+    // 默认每秒检查一次
+    static final long DEFAULT_INTERVAL = 1000;
+    // 默认每写入 4MB 日志做一次检查点
+    static final long DEFAULT_LOG_SIZE = 4L << 20;
+
+    // 进程内每个数据库当前的检查点线程
+    private static final Map<String, Checkpointer> OWNERS = new ConcurrentHashMap<>();
+
+    private final DataManagerImpl dm;
+    private final long interval;
+    private final long logSize;
+    private String ownedPath;
+
+    private final Lock lock;
+    private final Condition wakeup;
+    private volatile boolean closed;
+    private final Thread thread;
+
+    Checkpointer(DataManagerImpl dm, long interval, long logSize) {
+        this.dm = dm;
+        this.interval = interval;
+        this.logSize = logSize;
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+        this.thread = new Thread(this::run, "checkpointer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * 停止 path 对应数据库之前未关闭的检查点线程（如崩溃后在同一进程内重启），
+     * 需要在打开日志和恢复之前调用，避免旧实例继续做检查点
+     * @param path 数据库路径
+     */
+    static void stop(String path) {
+        Checkpointer previous = OWNERS.get(canonicalPath(path));
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * 成为 path 对应数据库的检查点线程
+     * @param path 数据库路径
+     */
+    void own(String path) {
+        ownedPath = canonicalPath(path);
+        Checkpointer previous = OWNERS.put(ownedPath, this);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private static String canonicalPath(String path) {
+        try {
+            return new File(path).getCanonicalPath();
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            lock.lock();
+            try {
+                if (!closed) {
+                    wakeup.await(interval, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (closed) {
+                return;
+            }
+            if (dm.logSinceCheckpoint() >= logSize) {
+                dm.checkpoint();
+            }
+        }
+    }
+
+    /**
+     * 停止检查点线程，等待正在进行的检查点完成
+     */
+    void close() {
+        if (ownedPath != null) {
+            OWNERS.remove(ownedPath, this);
+        }
+        closed = true;
+        lock.lock();
+        try {
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -6,6 +6,8 @@ import top.lifeifan.db.backend.dm.page.PageOne;
 import top.lifeifan.db.backend.dm.pageCache.PageCache;
 import top.lifeifan.db.backend.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * DataManager
  *
@@ -14,30 +16,46 @@ import top.lifeifan.db.backend.tm.TransactionManager;
  */
 public interface DataManager {
 
+    // 启动参数，检查点线程的检查间隔（毫秒）
+    String CHECKPOINT_INTERVAL_OPTION = "db.checkpoint.interval";
+    // 启动参数，两次检查点之间的日志量（字节）
+    String CHECKPOINT_LOG_SIZE_OPTION = "db.checkpoint.logsize";
+    // 启动参数，崩溃恢复时重做的线程数，默认单线程
+    String RECOVER_THREADS_OPTION = "db.recover.threads";
+
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    /**
+     * 提示即将按顺序读取这些数据项，可以提前加载它们所在的页面
+     */
+    void prefetch(List<Long> uids);
     void close();
 
     static DataManager create(String path, long mem, TransactionManager tm) {
+        Checkpointer.stop(path);
         PageCache pc = PageCache.create(path, mem);
         Logger lg = Logger.create(path);
 
         DataManagerImpl dm = new DataManagerImpl(tm, pc, lg);
         dm.initPageOne();
+        dm.startCheckpointer(path);
         return dm;
     }
 
     static DataManager open(String path, long mem, TransactionManager tm) {
+        Checkpointer.stop(path);
         PageCache pc = PageCache.open(path, mem);
         Logger lg = Logger.open(path);
 
         DataManagerImpl dm = new DataManagerImpl(tm, pc, lg);
         if (!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            Recover.recover(tm, lg, pc, PageOne.getCheckpoint(dm.pageOne),
+                    Integer.getInteger(RECOVER_THREADS_OPTION, RedoWorkers.DEFAULT_THREADS));
         }
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pageCache.flushPage(dm.pageOne);
+        dm.startCheckpointer(path);
 
         return dm;
     }
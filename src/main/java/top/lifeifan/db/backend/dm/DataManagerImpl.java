@@ -15,7 +15,20 @@ import top.lifeifan.db.backend.utils.Panic;
 import top.lifeifan.db.backend.utils.Types;
 import top.lifeifan.db.common.Error;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
+ * 模糊检查点：
+ * 修改页面之前用当前的日志末尾标记页面的 recLsn，该修改的日志不会早于它；
+ * 写完日志后把日志的 LSN 记为页面的 PageLSN，恢复时跳过页面已经包含的日志。
+ * 检查点不写回脏页，也不阻塞写日志和修改页面：取日志末尾和所有脏页最小的 recLsn 中较小者作为 redoLsn，
+ * 再写入一条检查点日志，记录 redoLsn、当前页数和仍未结束的事务及其第一条日志的 LSN，检查点日志的 LSN 记在 PageOne 中。
+ * 脏页由后台刷脏和淘汰写回，redoLsn 随之前移；redoLsn 和所有未结束事务的第一条日志之前的日志段不再需要，随即被删除。
  * @author lifeifan
  * @since 2023-02-06
  */
@@ -27,12 +40,21 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     PageIndex pageIndex;
     Page pageOne;
 
+    // 写过日志、可能还未结束的事务和它们第一条、最后一条日志的 LSN，检查点时去掉已经结束的
+    private final Map<Long, Long> firstLsn;
+    private final Map<Long, Long> lastLsn;
+    // 上一次检查点时的日志末尾
+    private volatile long lastCheckpoint;
+    Checkpointer checkpointer;
+
     public DataManagerImpl(TransactionManager tm, PageCache pageCache, Logger logger) {
         super(0);
         this.tm = tm;
         this.pageCache = pageCache;
         this.logger = logger;
         this.pageIndex = new PageIndex();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.lastLsn = new ConcurrentHashMap<>();
     }
 
     void fillPageIndex() {
@@ -60,6 +82,32 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return dataItem;
     }
 
+    /**
+     * 将数据项所在的页号按访问顺序去重，相邻且连续的页号合并后交给页面缓存预读
+     */
+    @Override
+    public void prefetch(List<Long> uids) {
+        LinkedHashSet<Integer> pgNos = new LinkedHashSet<>();
+        for (long uid : uids) {
+            pgNos.add((int) ((uid >>> 32) & ((1L << 32) - 1)));
+        }
+        int start = 0, count = 0;
+        for (int pgNo : pgNos) {
+            if (count > 0 && pgNo == start + count) {
+                count++;
+                continue;
+            }
+            if (count > 0) {
+                pageCache.prefetch(start, count);
+            }
+            start = pgNo;
+            count = 1;
+        }
+        if (count > 0) {
+            pageCache.prefetch(start, count);
+        }
+    }
+
     @Override
     public long insert(long xid, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
@@ -84,19 +132,19 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         int freeSpace = 0;
         try {
             page = pageCache.getPage(pageInfo.getPgNo());
-            byte[] log = Recover.insertLog(xid, page, raw);
-            logger.log(log);
-
+            byte[] log = Recover.insertLog(xid, lastLsn.getOrDefault(xid, 0L), page, raw);
+            markDirty(page);
+            long lsn = log(xid, log);
             short offset = PageX.insert(page, raw);
-
-            page.release();
+            PageX.setPageLsn(page, lsn);
             return Types.addressToUid(pageInfo.getPgNo(), offset);
         } finally {
+            // 释放后页框可能被其他页面复用，先读出空闲空间再释放
             if (page != null) {
-                pageIndex.add(pageInfo.getPgNo(), PageX.getFreeSpace(page));
-            } else {
-                pageIndex.add(pageInfo.getPgNo(), freeSpace);
+                freeSpace = PageX.getFreeSpace(page);
+                page.release();
             }
+            pageIndex.add(pageInfo.getPgNo(), freeSpace);
         }
     }
 
@@ -116,10 +164,16 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public void close() {
+        if (checkpointer != null) {
+            checkpointer.close();
+        }
         super.close();
         logger.close();
 
+        // 先让其他页面落盘，再写入正常关闭的标记
+        pageCache.flushAll();
         PageOne.setVcClose(pageOne);
+        pageCache.flushPage(pageOne);
         pageOne.release();
         pageCache.close();
     }
@@ -154,8 +208,82 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      * @param dataItem
      */
     public void logDataItem(long xid, DataItemImpl dataItem) {
-        byte[] log = Recover.updateLog(xid, dataItem);
-        logger.log(log);
+        byte[] log = Recover.updateLog(xid, lastLsn.getOrDefault(xid, 0L), dataItem);
+        long lsn = log(xid, log);
+        PageX.setPageLsn(dataItem.page(), lsn);
+    }
+
+    /**
+     * 为 xid 生成只包含一个修改区间的 update 日志
+     * @param offset 区间在数据项中的偏移
+     */
+    public void logDataItem(long xid, DataItemImpl dataItem, int offset, byte[] oldRaw, byte[] newRaw) {
+        byte[] log = Recover.updateLog(xid, lastLsn.getOrDefault(xid, 0L), dataItem.getUid(), offset, oldRaw, newRaw);
+        long lsn = log(xid, log);
+        PageX.setPageLsn(dataItem.page(), lsn);
+    }
+
+    /**
+     * 在修改页面之前调用，标记脏页并记录 recLsn
+     * @param page 被引用的页面
+     */
+    public void markDirty(Page page) {
+        page.setDirty(true);
+        page.setRecLsn(logger.nextLsn());
+    }
+
+    /**
+     * 写日志，写之前记录事务的第一条日志：记下的 LSN 不会晚于日志实际的 LSN，
+     * 检查点读到的日志末尾之后才记录的事务，它的日志都在 redoLsn 之后
+     * @return 日志的 LSN
+     */
+    private long log(long xid, byte[] log) {
+        firstLsn.putIfAbsent(xid, logger.nextLsn());
+        long lsn = logger.log(log);
+        lastLsn.put(xid, lsn);
+        return lsn;
+    }
+
+    void startCheckpointer(String path) {
+        lastCheckpoint = PageOne.getCheckpoint(pageOne);
+        checkpointer = new Checkpointer(this,
+                Long.getLong(CHECKPOINT_INTERVAL_OPTION, Checkpointer.DEFAULT_INTERVAL),
+                Long.getLong(CHECKPOINT_LOG_SIZE_OPTION, Checkpointer.DEFAULT_LOG_SIZE));
+        checkpointer.own(path);
+    }
+
+    long logSinceCheckpoint() {
+        return logger.nextLsn() - lastCheckpoint;
+    }
+
+    /**
+     * 做一次检查点，并删除不再需要的日志段
+     */
+    synchronized void checkpoint() {
+        long end = logger.nextLsn();
+        // 此后才修改的页面 recLsn 不小于 end
+        long redoLsn = Math.min(end, pageCache.minRecLsn());
+
+        // redoLsn 之前写过日志的事务都已记入 firstLsn，去掉已经结束的
+        Map<Long, Long> active = new HashMap<>();
+        long keep = redoLsn;
+        Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> entry = it.next();
+            if (!tm.isActive(entry.getKey())) {
+                it.remove();
+                lastLsn.remove(entry.getKey());
+            } else if (entry.getValue() < redoLsn) {
+                active.put(entry.getKey(), entry.getValue());
+                keep = Math.min(keep, entry.getValue());
+            }
+        }
+
+        long lsn = logger.log(Recover.checkpointLog(redoLsn, pageCache.getPageNumber(), active));
+        PageOne.setCheckpoint(pageOne, lsn);
+        pageCache.flushPage(pageOne);
+        lastCheckpoint = end;
+        logger.purge(keep);
     }
 
     public void releaseDataItem(DataItemImpl dataItem) {
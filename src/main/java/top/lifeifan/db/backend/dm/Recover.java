@@ -10,6 +10,7 @@ import top.lifeifan.db.backend.dm.pageCache.PageCache;
 import top.lifeifan.db.backend.tm.TransactionManager;
 import top.lifeifan.db.backend.utils.Panic;
 import top.lifeifan.db.backend.utils.Parser;
+import top.lifeifan.db.common.Error;
 
 import java.util.*;
 
@@ -17,12 +18,14 @@ public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
     static class InsertLogInfo {
         long xid;
+        long prevLsn;
         int pgNo;
         short offset;
         byte[] raw;
@@ -30,113 +33,146 @@ public class Recover {
 
     static class UpdateLogInfo {
         long xid;
+        long prevLsn;
         int pgNo;
         short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        // 修改过的区间在数据项中的偏移，和区间修改前后的内容
+        short[] deltaOffsets;
+        byte[][] oldRaws;
+        byte[][] newRaws;
     }
 
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    static class CheckpointLogInfo {
+        long redoLsn;
+        int pageNumber;
+        Map<Long, Long> active;
+    }
+
+    /**
+     * 崩溃恢复：
+     * 分析和重做合并为一次顺序扫描，重复历史，重做所有页面还不包含的日志（日志的 LSN 大于页面的 PageLSN），
+     * 同时记录每个事务的最后一条日志；扫描结束后仍处于 active 状态的事务按日志中的 PrevLSN 反向撤销。
+     * 重做按页号分给多个线程并行进行，见 RedoWorkers。
+     * @param checkpoint 最近一次完成的检查点日志的 LSN，为 0 时从头恢复
+     * @param threads 重做的线程数
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, long checkpoint, int threads) {
         System.out.println("Recovering...");
 
-        lg.rewind();
+        // redoLsn 之前的修改已经落盘，只需要从 redoLsn 开始重做；
+        // 检查点时仍未结束的事务可能在 redoLsn 之前就有日志，要从它们的第一条日志开始扫描
+        long redoStart = -1, scanStart = -1;
         int maxPgNo = 0;
+        if (checkpoint > 0) {
+            lg.rewind(checkpoint);
+            CheckpointLogInfo ci = parseCheckpointLog(lg.next());
+            redoStart = scanStart = ci.redoLsn;
+            for (long lsn : ci.active.values()) {
+                scanStart = Math.min(scanStart, lsn);
+            }
+            maxPgNo = ci.pageNumber;
+            System.out.println("Checkpoint at " + checkpoint + ", redo from " + redoStart + ".");
+        }
+
+        // 每个事务最后一条日志的 LSN
+        Map<Long, Long> lastLsn = new HashMap<>();
+        RedoWorkers workers = new RedoWorkers(pc, threads);
+        rewind(lg, scanStart);
         while(true) {
             byte[] log = lg.next();
             if (log == null) {
                 break;
             }
-            int pgNo;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgNo = li.pgNo;
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                pgNo = xi.pgNo;
+            if (isCheckpointLog(log)) {
+                continue;
             }
-            if (pgNo > maxPgNo) {
-                maxPgNo = pgNo;
+            long lsn = lg.lsn();
+            int pgNo = parsePgNo(log);
+            lastLsn.put(parseXid(log), lsn);
+            maxPgNo = Math.max(maxPgNo, pgNo);
+            if (lsn >= redoStart) {
+                workers.submit(pgNo, log, lsn);
+            } else {
+                workers.skip();
             }
         }
+        workers.finish();
+        System.out.println("Redo " + workers.getRedone() + " logs, skip " + workers.getSkipped() + " logs.");
+
         if (maxPgNo == 0) {
             maxPgNo = 1;
         }
         pc.truncateByPageNo(maxPgNo);
         System.out.println("Truncate to " + maxPgNo + " pages.");
 
-        redoTransactions(tm, lg, pc);
-        System.out.println("Redo Transaction Over.");
-
-        undoTransactions(tm, lg, pc);
+        undoTransactions(tm, lg, pc, lastLsn);
         System.out.println("Undo Transaction Over.");
 
+        // 恢复时的修改没有标记 recLsn，先落盘，之后的检查点才能跳过这些日志
+        pc.flushAll();
         System.out.println("Recovery Over.");
     }
 
-    private static void redoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) {
-                break;
-            }
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                // 如果插入事务已完成，就重新插入
-                if (!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                // 如果更新事务已完成，就重新更新
-                if (!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
-                }
-            }
+    private static void rewind(Logger lg, long lsn) {
+        if (lsn < 0) {
+            lg.rewind();
+        } else {
+            lg.rewind(lsn);
         }
     }
 
-    private static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while(true) {
+    /**
+     * 撤销仍处于 active 状态的事务，每个事务只在扫描结束时查询一次状态
+     * 所有待撤销的日志按 LSN 从大到小撤销，再沿 PrevLSN 找到同一事务的上一条日志
+     */
+    private static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc, Map<Long, Long> lastLsn) {
+        List<Long> losers = new ArrayList<>();
+        // LSN -> XID
+        TreeMap<Long, Long> pending = new TreeMap<>();
+        for (Map.Entry<Long, Long> entry : lastLsn.entrySet()) {
+            if (tm.isActive(entry.getKey())) {
+                losers.add(entry.getKey());
+                pending.put(entry.getValue(), entry.getKey());
+            }
+        }
+        while (!pending.isEmpty()) {
+            long lsn = pending.pollLastEntry().getKey();
+            lg.rewind(lsn);
             byte[] log = lg.next();
-            if (log == null) {
-                break;
+            if (log == null || isCheckpointLog(log)) {
+                Panic.panic(Error.BadLogFileException);
             }
+            long prevLsn;
+            long xid;
             if (isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+                doInsertLog(pc, li, lsn, UNDO);
+                xid = li.xid;
+                prevLsn = li.prevLsn;
             } else {
-                InsertLogInfo xi = parseInsertLog(log);
-                long xid = xi.xid;
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+                UpdateLogInfo xi = parseUpdateLog(log);
+                doUpdateLog(pc, xi, lsn, UNDO);
+                xid = xi.xid;
+                prevLsn = xi.prevLsn;
             }
-        }
-        for (Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size() - 1; i >= 0; i--) {
-                byte[] log = logs.get(i);
-                if (isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
-                }
+            if (prevLsn > 0) {
+                pending.put(prevLsn, xid);
             }
-            tm.abort(entry.getKey());
+        }
+        for (long xid : losers) {
+            tm.abort(xid);
+        }
+    }
+
+    /**
+     * 重做一条插入或更新日志
+     * @return 页面已经包含这条日志则返回 false
+     */
+    static boolean redo(PageCache pc, byte[] log, long lsn) {
+        if (isInsertLog(log)) {
+            return doInsertLog(pc, parseInsertLog(log), lsn, REDO);
+        } else {
+            return doUpdateLog(pc, parseUpdateLog(log), lsn, REDO);
         }
     }
 
@@ -144,96 +180,254 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isCheckpointLog(byte[] log) {
+        return log[0] == LOG_TYPE_CHECKPOINT;
+    }
+
 
-    // [LogType 1B] [XID 8B] [PgNo 4B] [Offset 2B] [Raw]
+    // [LogType 1B] [XID 8B] [PrevLSN 8B] [PgNo 4B] [Offset 2B] [Raw]
+    // PrevLSN: 同一事务上一条日志的 LSN，没有时为 0
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE + 1;
-    private static final int OF_INSERT_PGNO = OF_XID + 8;
+    private static final int OF_PREV_LSN = OF_XID + 8;
+    private static final int OF_INSERT_PGNO = OF_PREV_LSN + 8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
 
-    public static byte[] insertLog(long xid, Page page, byte[] raw) {
+    public static byte[] insertLog(long xid, long prevLsn, Page page, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] prevLsnRaw = Parser.long2Byte(prevLsn);
         byte[] pgNoRaw = Parser.int2Byte(page.getPageNumber());
         byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(page));
-        return Bytes.concat(logTypeRaw, xidRaw, pgNoRaw, offsetRaw, raw);
+        return Bytes.concat(logTypeRaw, xidRaw, prevLsnRaw, pgNoRaw, offsetRaw, raw);
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_PREV_LSN));
+        li.prevLsn = Parser.parseLong(Arrays.copyOfRange(log, OF_PREV_LSN, OF_INSERT_PGNO));
         li.pgNo = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
         li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
-        InsertLogInfo li = parseInsertLog(log);
-        Page page = null;
-        try {
-            page = pc.getPage(li.pgNo);
-        } catch (Exception e) {
-            Panic.panic(e);
+    private static long parseXid(byte[] log) {
+        return Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_PREV_LSN));
+    }
+
+    // 只解析插入或更新日志修改的页号
+    private static int parsePgNo(byte[] log) {
+        if (isInsertLog(log)) {
+            return Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
         }
+        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        return (int) ((uid >>> 32) & ((1L << 32) - 1));
+    }
+
+    /**
+     * @return 重做时页面已经包含这条日志则返回 false
+     */
+    private static boolean doInsertLog(PageCache pc, InsertLogInfo li, long lsn, int flag) {
+        Page page = getPage(pc, li.pgNo);
         try {
-            if (flag == UNDO) {
-              DataItem.setDataItemRawInvalid(li.raw);
+            if (flag == REDO) {
+                if (PageX.getPageLsn(page) >= lsn) {
+                    return false;
+                }
+                PageX.recoverInsert(page, li.raw, li.offset);
+                PageX.setPageLsn(page, lsn);
+            } else {
+                DataItem.setDataItemRawInvalid(li.raw);
+                PageX.recoverInsert(page, li.raw, li.offset);
             }
-            PageX.recoverInsert(page, li.raw, li.offset);
+            return true;
         }  finally {
             page.release();
         }
     }
 
-    // [LogType 1B] [XID 8B] [UID 8B] [OldRaw] [NewRaw]
-    private static final int OF_UPDATE_UID = OF_XID + 8;
+    // [LogType 1B] [XID 8B] [PrevLSN 8B] [UID 8B] [Delta] [Delta] ...
+    // Delta: [Offset 2B] [Length 2B] [OldRaw] [NewRaw]，数据项中 Offset 开始的 Length 字节修改前后的内容
+    // 如 setXmax 只记录被修改的 8 字节，而不是整个数据项修改前后的内容
+    private static final int OF_UPDATE_UID = OF_PREV_LSN + 8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;
+    private static final int LEN_DELTA_HEADER = 4;
 
-    public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logTypeRaw = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
+    public static byte[] updateLog(long xid, long prevLsn, DataItem di) {
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logTypeRaw, xidRaw, uidRaw, oldRaw, newRaw);
+        List<int[]> deltas = diff(oldRaw, raw);
+        int length = OF_UPDATE_RAW;
+        for (int[] delta : deltas) {
+            length += LEN_DELTA_HEADER + 2 * delta[1];
+        }
+        byte[] log = updateLogHeader(xid, prevLsn, di.getUid(), length);
+        int pos = OF_UPDATE_RAW;
+        for (int[] delta : deltas) {
+            pos = putDelta(log, pos, delta[0], oldRaw, delta[0], raw.raw, raw.start + delta[0], delta[1]);
+        }
+        return log;
+    }
+
+    /**
+     * 只修改了数据项中一个区间的 update 日志，如 setXmax
+     * @param offset 区间在数据项中的偏移
+     */
+    public static byte[] updateLog(long xid, long prevLsn, long uid, int offset, byte[] oldRaw, byte[] newRaw) {
+        byte[] log = updateLogHeader(xid, prevLsn, uid, OF_UPDATE_RAW + LEN_DELTA_HEADER + 2 * newRaw.length);
+        putDelta(log, OF_UPDATE_RAW, offset, oldRaw, 0, newRaw, 0, newRaw.length);
+        return log;
+    }
+
+    private static byte[] updateLogHeader(long xid, long prevLsn, long uid, int length) {
+        byte[] log = new byte[length];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+        System.arraycopy(Parser.long2Byte(prevLsn), 0, log, OF_PREV_LSN, 8);
+        System.arraycopy(Parser.long2Byte(uid), 0, log, OF_UPDATE_UID, 8);
+        return log;
+    }
+
+    /**
+     * @return 下一个 Delta 的位置
+     */
+    private static int putDelta(byte[] log, int pos, int offset, byte[] oldRaw, int oldStart,
+                                byte[] newRaw, int newStart, int length) {
+        System.arraycopy(Parser.short2Byte((short) offset), 0, log, pos, 2);
+        System.arraycopy(Parser.short2Byte((short) length), 0, log, pos + 2, 2);
+        pos += LEN_DELTA_HEADER;
+        System.arraycopy(oldRaw, oldStart, log, pos, length);
+        pos += length;
+        System.arraycopy(newRaw, newStart, log, pos, length);
+        return pos + length;
+    }
+
+    /**
+     * 找出数据项中被修改过的区间 [偏移, 长度]
+     * 两处修改之间相同的字节不多时合并为一个区间，比多记一个区间头更短
+     */
+    private static List<int[]> diff(byte[] oldRaw, SubArray raw) {
+        List<int[]> deltas = new ArrayList<>();
+        int start = -1, last = -1;
+        for (int i = 0; i < oldRaw.length; i++) {
+            if (oldRaw[i] == raw.raw[raw.start + i]) {
+                continue;
+            }
+            if (start >= 0 && 2 * (i - last - 1) > LEN_DELTA_HEADER) {
+                deltas.add(new int[]{start, last - start + 1});
+                start = -1;
+            }
+            if (start < 0) {
+                start = i;
+            }
+            last = i;
+        }
+        if (start >= 0) {
+            deltas.add(new int[]{start, last - start + 1});
+        }
+        return deltas;
     }
 
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_PREV_LSN));
+        li.prevLsn = Parser.parseLong(Arrays.copyOfRange(log, OF_PREV_LSN, OF_UPDATE_UID));
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
         li.offset = (short) (uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgNo = (int) (uid & ((1L << 32) - 1));
-        int oldOrNewRawLen = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_INSERT_RAW, OF_UPDATE_RAW + oldOrNewRawLen);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + oldOrNewRawLen, OF_UPDATE_RAW + 2 * oldOrNewRawLen);
+        int count = 0;
+        for (int pos = OF_UPDATE_RAW; pos < log.length; count++) {
+            pos += LEN_DELTA_HEADER + 2 * Parser.parseShort(Arrays.copyOfRange(log, pos + 2, pos + 4));
+        }
+        li.deltaOffsets = new short[count];
+        li.oldRaws = new byte[count][];
+        li.newRaws = new byte[count][];
+        int pos = OF_UPDATE_RAW;
+        for (int i = 0; i < count; i++) {
+            li.deltaOffsets[i] = Parser.parseShort(Arrays.copyOfRange(log, pos, pos + 2));
+            short length = Parser.parseShort(Arrays.copyOfRange(log, pos + 2, pos + 4));
+            pos += LEN_DELTA_HEADER;
+            li.oldRaws[i] = Arrays.copyOfRange(log, pos, pos + length);
+            li.newRaws[i] = Arrays.copyOfRange(log, pos + length, pos + 2 * length);
+            pos += 2 * length;
+        }
         return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        byte[] raw;
-        UpdateLogInfo xi = parseUpdateLog(log);
-        int pgNo = xi.pgNo;
-        short offset = xi.offset;
-        if (flag == REDO) {
-            raw = xi.newRaw;
-        } else {
-            raw = xi.oldRaw;
+    /**
+     * @return 重做时页面已经包含这条日志则返回 false
+     */
+    private static boolean doUpdateLog(PageCache pc, UpdateLogInfo xi, long lsn, int flag) {
+        Page pg = getPage(pc, xi.pgNo);
+        try {
+            if (flag == REDO) {
+                if (PageX.getPageLsn(pg) >= lsn) {
+                    return false;
+                }
+                for (int i = 0; i < xi.deltaOffsets.length; i++) {
+                    PageX.recoverUpdate(pg, xi.newRaws[i], (short) (xi.offset + xi.deltaOffsets[i]));
+                }
+                PageX.setPageLsn(pg, lsn);
+            } else {
+                for (int i = xi.deltaOffsets.length - 1; i >= 0; i--) {
+                    PageX.recoverUpdate(pg, xi.oldRaws[i], (short) (xi.offset + xi.deltaOffsets[i]));
+                }
+            }
+            return true;
+        } finally {
+            pg.release();
         }
-        Page pg = null;
+    }
+
+    private static Page getPage(PageCache pc, int pgNo) {
+        Page page = null;
         try {
-            pg = pc.getPage(pgNo);
+            page = pc.getPage(pgNo);
         } catch (Exception e) {
             Panic.panic(e);
         }
-        try {
-            PageX.recoverUpdate(pg, raw, offset);
-        } finally {
-            pg.release();
+        return page;
+    }
+
+    // [LogType 1B] [RedoLSN 8B] [PageNumber 4B] [[XID 8B] [FirstLSN 8B]]...
+    private static final int OF_CKPT_REDO = OF_TYPE + 1;
+    private static final int OF_CKPT_PAGES = OF_CKPT_REDO + 8;
+    private static final int OF_CKPT_ACTIVE = OF_CKPT_PAGES + 4;
+
+    /**
+     * @param redoLsn 重做的起点，之前的日志对页面的修改都已落盘
+     * @param pageNumber 检查点时的页数
+     * @param active 仍未结束的事务和它们第一条日志的 LSN
+     */
+    public static byte[] checkpointLog(long redoLsn, int pageNumber, Map<Long, Long> active) {
+        byte[] log = new byte[OF_CKPT_ACTIVE + active.size() * 16];
+        log[OF_TYPE] = LOG_TYPE_CHECKPOINT;
+        System.arraycopy(Parser.long2Byte(redoLsn), 0, log, OF_CKPT_REDO, 8);
+        System.arraycopy(Parser.int2Byte(pageNumber), 0, log, OF_CKPT_PAGES, 4);
+        int pos = OF_CKPT_ACTIVE;
+        for (Map.Entry<Long, Long> entry : active.entrySet()) {
+            System.arraycopy(Parser.long2Byte(entry.getKey()), 0, log, pos, 8);
+            System.arraycopy(Parser.long2Byte(entry.getValue()), 0, log, pos + 8, 8);
+            pos += 16;
+        }
+        return log;
+    }
+
+    private static CheckpointLogInfo parseCheckpointLog(byte[] log) {
+        if (log == null || !isCheckpointLog(log)) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        CheckpointLogInfo ci = new CheckpointLogInfo();
+        ci.redoLsn = Parser.parseLong(Arrays.copyOfRange(log, OF_CKPT_REDO, OF_CKPT_PAGES));
+        ci.pageNumber = Parser.parseInt(Arrays.copyOfRange(log, OF_CKPT_PAGES, OF_CKPT_ACTIVE));
+        ci.active = new HashMap<>();
+        for (int pos = OF_CKPT_ACTIVE; pos < log.length; pos += 16) {
+            ci.active.put(Parser.parseLong(Arrays.copyOfRange(log, pos, pos + 8)),
+                    Parser.parseLong(Arrays.copyOfRange(log, pos + 8, pos + 16)));
         }
+        return ci;
     }
 }
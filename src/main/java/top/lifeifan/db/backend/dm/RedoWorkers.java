@@ -0,0 +1,158 @@
+package top.lifeifan.db.backend.dm;
+
+import top.lifeifan.db.backend.dm.pageCache.PageCache;
+import top.lifeifan.db.backend.utils.Panic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 恢复时的并行重做
+ *
+ * 不同页面上的日志互不影响，按页号把日志分给固定的工作线程，同一页面的日志总是由同一个线程按日志顺序重做。
+ * 扫描日志的线程只解析日志头，完整的解析和页面的读取、修改都在工作线程中进行。
+ * 日志攒成批再交给工作线程，每个线程的队列有上限，扫描过快时阻塞等待。
+ * 只有一个线程时直接在扫描线程中重做。
+ * @author lifeifan
+ * @since 2023-04-10
+ */
+class RedoWorkers {
+
+    // 默认单线程，在调用线程中直接重做：单核上并行重做比单线程慢，多核上的加速还没有测量
+    static final int DEFAULT_THREADS = 1;
+
+    // 每批日志的条数
+    private static final int BATCH_SIZE = 256;
+    // 每个工作线程最多积压的批数
+    private static final int QUEUE_CAPACITY = 16;
+
+    private static class RedoTask {
+        final byte[] log;
+        final long lsn;
+
+        RedoTask(byte[] log, long lsn) {
+            this.log = log;
+            this.lsn = lsn;
+        }
+    }
+
+    private final PageCache pc;
+    private final List<BlockingQueue<List<RedoTask>>> queues;
+    private final List<List<RedoTask>> batches;
+    private final List<Thread> threads;
+
+    private final LongAdder redone;
+    private final LongAdder skipped;
+
+    RedoWorkers(PageCache pc, int threadNum) {
+        this.pc = pc;
+        this.queues = new ArrayList<>();
+        this.batches = new ArrayList<>();
+        this.threads = new ArrayList<>();
+        this.redone = new LongAdder();
+        this.skipped = new LongAdder();
+        if (threadNum <= 1) {
+            return;
+        }
+        for (int i = 0; i < threadNum; i++) {
+            BlockingQueue<List<RedoTask>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            queues.add(queue);
+            batches.add(new ArrayList<>(BATCH_SIZE));
+            Thread thread = new Thread(() -> run(queue), "redo-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * 重做一条日志，返回时可能还没有完成
+     * @param pgNo 日志修改的页号
+     */
+    void submit(int pgNo, byte[] log, long lsn) {
+        if (threads.isEmpty()) {
+            redo(log, lsn);
+            return;
+        }
+        int i = pgNo % threads.size();
+        List<RedoTask> batch = batches.get(i);
+        batch.add(new RedoTask(log, lsn));
+        if (batch.size() >= BATCH_SIZE) {
+            put(i, batch);
+            batches.set(i, new ArrayList<>(BATCH_SIZE));
+        }
+    }
+
+    /**
+     * 记录一条不需要重做的日志
+     */
+    void skip() {
+        skipped.increment();
+    }
+
+    /**
+     * 等待已提交的日志全部重做完成，并停止工作线程
+     */
+    void finish() {
+        for (int i = 0; i < threads.size(); i++) {
+            if (!batches.get(i).isEmpty()) {
+                put(i, batches.get(i));
+            }
+            // 空的批表示结束
+            put(i, Collections.emptyList());
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    long getRedone() {
+        return redone.sum();
+    }
+
+    long getSkipped() {
+        return skipped.sum();
+    }
+
+    private void put(int i, List<RedoTask> batch) {
+        try {
+            queues.get(i).put(batch);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void run(BlockingQueue<List<RedoTask>> queue) {
+        while (true) {
+            List<RedoTask> batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+                return;
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (RedoTask task : batch) {
+                redo(task.log, task.lsn);
+            }
+        }
+    }
+
+    private void redo(byte[] log, long lsn) {
+        if (Recover.redo(pc, log, lsn)) {
+            redone.increment();
+        } else {
+            skipped.increment();
+        }
+    }
+}
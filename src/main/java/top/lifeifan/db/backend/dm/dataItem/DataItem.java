@@ -27,6 +27,11 @@ public interface DataItem {
     void before();
     void unBefore();
     void after(long xid);
+    /**
+     * 用 raw 覆盖 Data 中 offset 开始的字节并写日志，日志只记录被覆盖的区间，
+     * 不需要 before 复制整个数据项，用于修改定长的字段
+     */
+    void update(long xid, int offset, byte[] raw);
     void release();
 
     void lock();
@@ -4,6 +4,7 @@ import top.lifeifan.db.backend.common.SubArray;
 import top.lifeifan.db.backend.dm.DataManagerImpl;
 import top.lifeifan.db.backend.dm.page.Page;
 
+import java.util.Arrays;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -50,7 +51,7 @@ public class DataItemImpl implements DataItem{
     @Override
     public void before() {
         wLock.lock();
-        page.setDirty(true);
+        dm.markDirty(page);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
@@ -66,6 +67,20 @@ public class DataItemImpl implements DataItem{
         wLock.unlock();
     }
 
+    @Override
+    public void update(long xid, int offset, byte[] newRaw) {
+        int pos = raw.start + OF_DATA + offset;
+        wLock.lock();
+        try {
+            byte[] old = Arrays.copyOfRange(raw.raw, pos, pos + newRaw.length);
+            dm.markDirty(page);
+            System.arraycopy(newRaw, 0, raw.raw, pos, newRaw.length);
+            dm.logDataItem(xid, this, OF_DATA + offset, old, newRaw);
+        } finally {
+            wLock.unlock();
+        }
+    }
+
     @Override
     public void release() {
         dm.releaseDataItem(this);
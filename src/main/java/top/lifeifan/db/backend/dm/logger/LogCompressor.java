@@ -0,0 +1,149 @@
+package top.lifeifan.db.backend.dm.logger;
+
+import java.util.Arrays;
+
+/**
+ * 日志压缩，LZ4 风格的字节级 LZ77 编码
+ *
+ * 压缩结果由若干序列组成，每个序列为：
+ * [Token] [LiteralLength...] [Literals] [Offset] [MatchLength...]
+ * Token 1字节，高 4 位为字面量长度，低 4 位为匹配长度减 MIN_MATCH，为 15 时后面跟着额外的长度字节，
+ * 额外的长度字节为 255 时继续累加下一个字节。
+ * Offset 2字节小端，匹配内容在已解压数据中往前的距离。
+ * 最后一个序列只有字面量，读完字面量后输入结束即解压结束。
+ * 用 4 字节的哈希表查找匹配，不追求压缩率，B+ 树节点、字符串等重复较多的内容能压缩到原来的几分之一。
+ * @author lifeifan
+ * @since 2023-04-12
+ */
+class LogCompressor {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+    private static final int RUN_MASK = 15;
+
+    /**
+     * @return 压缩后的内容，压缩后不比原来短时返回 null
+     */
+    static byte[] compress(byte[] src) {
+        int n = src.length;
+        // 完全无法压缩时的长度上限
+        byte[] out = new byte[n + n / 255 + 16];
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int op = 0;
+        int anchor = 0;
+        int i = 0;
+        while (i + MIN_MATCH <= n) {
+            int seq = readInt(src, i);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                i++;
+                continue;
+            }
+            int len = MIN_MATCH;
+            while (i + len < n && src[ref + len] == src[i + len]) {
+                len++;
+            }
+            op = writeSequence(out, op, src, anchor, i - anchor, i - ref, len);
+            i += len;
+            anchor = i;
+        }
+        op = writeSequence(out, op, src, anchor, n - anchor, 0, 0);
+        if (op >= n) {
+            return null;
+        }
+        return Arrays.copyOf(out, op);
+    }
+
+    /**
+     * @param length 解压后的长度
+     * @return 内容损坏时返回 null
+     */
+    static byte[] decompress(byte[] src, int off, int len, int length) {
+        byte[] dst = new byte[length];
+        int ip = off;
+        int end = off + len;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end) {
+                    break;
+                }
+                int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int match = token & RUN_MASK;
+                if (match == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        match += b;
+                    } while (b == 255);
+                }
+                match += MIN_MATCH;
+                if (offset == 0 || offset > op) {
+                    return null;
+                }
+                // 匹配可能和正在写入的内容重叠，逐字节复制
+                for (int k = 0; k < match; k++) {
+                    dst[op + k] = dst[op - offset + k];
+                }
+                op += match;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+        return ip == end && op == length ? dst : null;
+    }
+
+    private static int writeSequence(byte[] out, int op, byte[] src, int anchor, int literals, int offset, int match) {
+        int tokenPos = op++;
+        int token = Math.min(literals, RUN_MASK) << 4;
+        if (literals >= RUN_MASK) {
+            op = writeLength(out, op, literals - RUN_MASK);
+        }
+        System.arraycopy(src, anchor, out, op, literals);
+        op += literals;
+        if (match > 0) {
+            out[op++] = (byte) offset;
+            out[op++] = (byte) (offset >>> 8);
+            token |= Math.min(match - MIN_MATCH, RUN_MASK);
+            if (match - MIN_MATCH >= RUN_MASK) {
+                op = writeLength(out, op, match - MIN_MATCH - RUN_MASK);
+            }
+        }
+        out[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] out, int op, int length) {
+        while (length >= 255) {
+            out[op++] = (byte) 255;
+            length -= 255;
+        }
+        out[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] buf, int i) {
+        return (buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8 | (buf[i + 2] & 0xFF) << 16 | (buf[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
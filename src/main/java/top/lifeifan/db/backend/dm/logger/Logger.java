@@ -1,18 +1,5 @@
 package top.lifeifan.db.backend.dm.logger;
 
-import javafx.util.Pair;
-import top.lifeifan.db.backend.utils.FileUtil;
-import top.lifeifan.db.backend.utils.Panic;
-import top.lifeifan.db.backend.utils.Parser;
-import top.lifeifan.db.common.Error;
-
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-
 /**
  * @author lifeifan
  * @since 2023-02-05
@@ -20,39 +7,46 @@ import java.nio.channels.FileChannel;
 public interface Logger {
 
     String LOG_SUFFIX = ".log";
-
-    void log(byte[] data);
+    // 启动参数，新建日志的段大小（字节）
+    String SEGMENT_SIZE_OPTION = "db.log.segmentsize";
+    // 启动参数，不小于该长度（字节）的日志压缩后写入，默认不压缩
+    String COMPRESS_THRESHOLD_OPTION = "db.log.compress.threshold";
+
+    /**
+     * 写入一条日志，返回时日志已经落盘
+     * @return 日志的 LSN，随写入顺序递增
+     */
+    long log(byte[] data);
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
+    /**
+     * 从 lsn 处的日志开始读取
+     */
+    void rewind(long lsn);
+    /**
+     * @return 上一次 next 返回的日志的 LSN
+     */
+    long lsn();
+    /**
+     * @return 已落盘日志的末尾，之后写入的日志的 LSN 都不小于它
+     */
+    long nextLsn();
+    /**
+     * 删除 lsn 所在段之前的所有段
+     */
+    void purge(long lsn);
     void close();
 
     static Logger create(String path) {
-        File f = new File(path + LOG_SUFFIX);
-        FileUtil.createFileCanRW(f);
-        Pair<RandomAccessFile, FileChannel> pair = FileUtil.getRafAndChannel(f);
-        RandomAccessFile raf = pair.getKey();
-        FileChannel fc = pair.getValue();
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl lg = new LoggerImpl(path, Integer.getInteger(SEGMENT_SIZE_OPTION, LoggerImpl.DEFAULT_SEGMENT_SIZE),
+                Integer.getInteger(COMPRESS_THRESHOLD_OPTION, -1));
+        lg.initNew();
+        return lg;
     }
 
     static Logger open(String path) {
-        File f = new File(path + LOG_SUFFIX);
-        FileUtil.checkRW(f);
-        Pair<RandomAccessFile, FileChannel> pair = FileUtil.getRafAndChannel(f);
-        RandomAccessFile raf = pair.getKey();
-        FileChannel fc = pair.getValue();
-
-        LoggerImpl lg = new LoggerImpl(raf, fc);
+        LoggerImpl lg = new LoggerImpl(path, Integer.getInteger(COMPRESS_THRESHOLD_OPTION, -1));
         lg.init();
         return lg;
     }
@@ -1,217 +1,757 @@
 package top.lifeifan.db.backend.dm.logger;
 
 import com.google.common.primitives.Bytes;
+import top.lifeifan.db.backend.utils.FileUtil;
 import top.lifeifan.db.backend.utils.Panic;
 import top.lifeifan.db.backend.utils.Parser;
 import top.lifeifan.db.common.Error;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * 日志文件读写
  *
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
+ * 日志由若干个固定大小的段文件组成，段文件名为 path_段号.log：
+ * [Segment0] [Segment1] ... [SegmentN]
+ * 每个段的格式为：
+ * [SegmentHeader] [Log1] [Log2] ... [LogM]
+ * 日志不跨段，当前段放不下时开启新段。
+ * 日志的 LSN 为 段号 * 段大小 + 日志在段文件中的偏移，随写入顺序递增。
+ * 已经完成检查点的段可以通过 purge 删除，只保留之后的段。
+ *
+ * 段头的格式为：
+ * [SegNo] [SegSize] [PrevLength] [PrevChecksum] [HeaderChecksum]
+ * SegNo 段号，SegSize 段大小，各4字节int
+ * PrevLength 上一段中日志的总长度，PrevChecksum 上一段所有日志的 CRC32，第一段为 0
+ * HeaderChecksum 段头前 16 字节的 CRC32
+ * 一个段的校验和在段写满后随下一段的段头写入，日志只会顺序追加，不再回写。
  *
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
- * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Size 4字节int 标识Data长度，最高位为 1 表示 Data 经过压缩
+ * Checksum 4字节int，Size 和 Data 的 CRC32
+ * 压缩的 Data 为 [OriginalLength 4B] [Compressed]，见 LogCompressor，
+ * 只有设置了压缩阈值、日志不短于阈值并且压缩后更短时才压缩，读取时两种日志都能识别。
+ *
+ * 段文件创建时就用 0 填满到段大小并落盘，之后的写入只覆盖已分配的空间，文件大小不变，
+ * fsync 只需要写数据，不需要更新文件长度等元数据。下一段在后台提前创建好，写满当前段时直接使用。
+ * 段中日志的末尾不单独记录：写满的段由下一段段头中的 PrevLength 确定，
+ * 当前段从头读到第一条校验失败的日志为止，全 0 的空间不可能通过校验。
+ *
+ * 打开日志时只校验最后一段（段头不完整时为倒数第二段）并把尾部不完整的日志清零，
+ * 之前的段在 next 顺序读过时用下一段段头中的校验和校验。
+ * 读日志时每次从段文件读入一大块到读缓冲，日志直接在缓冲中校验，next 只为返回的日志内容分配一次内存。
+ *
+ * 写日志采用组提交：并发调用 log 的线程把日志放进同一个批次，
+ * 由其中一个线程把整批日志一次追加到文件末尾并 fsync，
+ * 每个线程等到自己所在的批次落盘后返回。
  *
  * @author lifeifan
  * @since 2023-02-05
  */
 public class LoggerImpl implements Logger{
 
-    private static final int SEED = 13331;
+    // 默认段大小 1MB
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    // 读缓冲的大小，比它大的日志读取时临时扩大缓冲
+    static final int READ_BUFFER_SIZE = 1 << 18;
+    // 预分配段文件时每次写入的 0 的长度
+    private static final int ZERO_CHUNK = 1 << 16;
+    private static final byte[] ZEROS = new byte[ZERO_CHUNK];
+
     private static final int OF_SIZE = 0;
     private static final int LEN_SIZE_OR_CHECKSUM = 4;
     private static final int OF_CHECKSUM = OF_SIZE + LEN_SIZE_OR_CHECKSUM;
     private static final int OF_DATA = OF_CHECKSUM + LEN_SIZE_OR_CHECKSUM;
+    // Size 中的压缩标记
+    private static final int COMPRESSED = 0x80000000;
+
+    private static final int OF_SEG_NO = 0;
+    private static final int OF_SEG_SIZE = OF_SEG_NO + 4;
+    private static final int OF_PREV_LENGTH = OF_SEG_SIZE + 4;
+    private static final int OF_PREV_CHECKSUM = OF_PREV_LENGTH + 4;
+    private static final int OF_HEADER_CHECKSUM = OF_PREV_CHECKSUM + 4;
+    static final int SEGMENT_HEADER_SIZE = OF_HEADER_CHECKSUM + 4;
 
-    private RandomAccessFile raf;
-    private FileChannel fc;
+    private final String path;
+    private int segmentSize;
+    // 不小于该长度的日志压缩后写入，小于 0 时不压缩
+    private final int compressThreshold;
     private Lock lock;
 
+    // 所有保留的段文件，按段号排列
+    private final Map<Integer, FileChannel> segments = new ConcurrentSkipListMap<>();
+    // 最早保留的段号
+    private int firstSegNo;
+    // 已落盘日志的末尾，之后写入的日志的 LSN 都不小于它
+    // 只在 lock 下修改，volatile 让 nextLsn 不加锁也能读到最新的值，标记脏页时不与组提交争用 lock
+    private volatile long durableEnd;
+
+    // 读取位置：下一条日志的 LSN、所在段的起始 LSN 和段中日志的末尾
     private long position;
-    private long fileSize;
-    private int xCheckNum;
+    private long readSegStart;
+    private long readSegEnd;
+    // 上一次 next 返回的日志的 LSN
+    private long lastLsn;
+    // 当前段已读日志的校验和，从段中间开始读时不校验
+    private final CRC32 readChecksum = new CRC32();
+    private boolean verifying;
+
+    // 读缓冲，缓存段文件 bufferedFc 中从 bufferedPos 开始的 readBuf.limit() 字节
+    private ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private FileChannel bufferedFc;
+    private long bufferedPos;
+    // 上一次 readLog 读到的日志在读缓冲中的偏移，以及是否经过压缩
+    private int recordOffset;
+    private boolean recordCompressed;
+    private final CRC32 recordChecksum = new CRC32();
+
+    // 写入位置：当前段的段号、段中日志的总长度和校验和，只由正在写入批次的线程修改
+    private int segNo;
+    private int segLength;
+    private final CRC32 segChecksum = new CRC32();
+    // 后台预分配的下一段，不在 segments 中，开启新段时才加入
+    private FutureTask<FileChannel> spare;
+    private int spareNo;
+
+    /**
+     * 段头
+     */
+    private static class Segment {
+        int no;
+        int size;
+        int prevLength;
+        int prevChecksum;
+    }
+
+    /**
+     * 一批一起落盘的日志
+     */
+    private static class Batch {
+        final List<byte[]> logs = new ArrayList<>();
+        long[] lsns;
+        boolean durable;
+    }
 
+    // 正在收集的批次
+    private Batch current;
+    // 是否有线程正在写入一个批次
+    private boolean flushing;
+    // 有批次落盘后唤醒等待的线程
+    private Condition flushed;
 
-    public LoggerImpl(RandomAccessFile raf, FileChannel fc, int xCheckNum) {
-        this.raf = raf;
-        this.fc = fc;
-        this.xCheckNum = xCheckNum;
+    public LoggerImpl(String path, int segmentSize, int compressThreshold) {
+        this.path = path;
+        this.segmentSize = segmentSize;
+        this.compressThreshold = compressThreshold;
         lock = new ReentrantLock();
+        flushed = lock.newCondition();
     }
 
-    public LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.raf = raf;
-        this.fc = fc;
+    public LoggerImpl(String path, int compressThreshold) {
+        this.path = path;
+        this.compressThreshold = compressThreshold;
         lock = new ReentrantLock();
+        flushed = lock.newCondition();
     }
 
-    void init() {
-        long size = 0;
-        try {
-            size = raf.length();
-        } catch (IOException e) {
-            Panic.panic(e);
+    public static File segmentFile(String path, int segNo) {
+        return new File(String.format("%s_%08d%s", path, segNo, LOG_SUFFIX));
+    }
+
+    /**
+     * @return path 已有的所有段号，从小到大排列
+     */
+    public static List<Integer> listSegments(String path) {
+        File base = new File(path).getAbsoluteFile();
+        Pattern pattern = Pattern.compile(Pattern.quote(base.getName()) + "_(\\d{8})" + Pattern.quote(LOG_SUFFIX));
+        List<Integer> res = new ArrayList<>();
+        String[] names = base.getParentFile().list();
+        if (names != null) {
+            for (String name : names) {
+                Matcher m = pattern.matcher(name);
+                if (m.matches()) {
+                    res.add(Integer.parseInt(m.group(1)));
+                }
+            }
         }
-        // log文件不能小于4字节
-        if (size < 4) {
+        res.sort(null);
+        return res;
+    }
+
+    /**
+     * 新建的日志：创建第一段
+     */
+    void initNew() {
+        if (segmentSize < SEGMENT_HEADER_SIZE + OF_DATA) {
             Panic.panic(Error.BadLogFileException);
         }
-        ByteBuffer raw = ByteBuffer.allocate(4);
+        if (!listSegments(path).isEmpty()) {
+            Panic.panic(Error.FileExistsException);
+        }
         try {
-            fc.position(0);
-            fc.read(raw);
+            FileChannel fc = createSegment(0);
+            segments.put(0, fc);
+            fc.write(ByteBuffer.wrap(segmentHeader(0, 0, 0)), 0);
+            fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xCheckNum = Parser.parseInt(raw.array());
-        this.fileSize = size;
+        firstSegNo = 0;
+        segNo = 0;
+        segLength = 0;
+        durableEnd = SEGMENT_HEADER_SIZE;
+        rewind();
+        prepareSpare(1);
+    }
+
+    void init() {
+        List<Integer> nos = listSegments(path);
+        if (nos.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        firstSegNo = nos.get(0);
+        int last = nos.get(nos.size() - 1);
+        // 段号必须连续
+        if (last - firstSegNo + 1 != nos.size()) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        for (int no : nos) {
+            File f = segmentFile(path, no);
+            FileUtil.checkRW(f);
+            segments.put(no, FileUtil.getRafAndChannel(f).getValue());
+        }
+        Segment first = readHeader(firstSegNo);
+        if (first == null) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        this.segmentSize = first.size;
 
-        checkAndRemoveTail();
+        checkAndRemoveTail(last);
+        prepareSpare(segNo + 1);
     }
 
     /**
-     * 校验日志文件的 xCheckSum，并移除尾部可能存在的 BadTail
+     * 校验最后一段中的日志，并移除尾部可能存在的 BadTail
+     * 之前的段在写入下一段前已经落盘，不在这里校验
      */
-    private void checkAndRemoveTail() {
-        rewind();
+    private void checkAndRemoveTail(int last) {
+        Segment tail = readHeader(last);
+        while ((tail == null || tail.no != last) && last > firstSegNo) {
+            // 新段的段头没有写完整，或是没有用上的预分配段，删除新段，上一段在新段创建前已经落盘
+            removeSegment(last);
+            last--;
+            tail = readHeader(last);
+        }
+        if (tail == null || tail.no != last) {
+            Panic.panic(Error.BadLogFileException);
+        }
 
-        int xCheck = 0;
-        while(true) {
-            byte[] log = internNext();
-            if (log == null) {
+        segNo = last;
+        segChecksum.reset();
+        FileChannel fc = segments.get(last);
+        long end = SEGMENT_HEADER_SIZE;
+        long limit = size(fc);
+        while (true) {
+            int length = readLog(fc, end, limit);
+            if (length < 0) {
                 break;
             }
-            xCheck = calCheckSum(xCheck, log);
-        }
-        if (xCheck != xCheckNum) {
-            Panic.panic(Error.BadLogFileException);
+            segChecksum.update(readBuf.array(), recordOffset, length);
+            end += length;
         }
+        segLength = (int) (end - SEGMENT_HEADER_SIZE);
 
-        // 截断文件到正常日志的末尾（去掉异常日志）
+        // 清零正常日志的末尾之后的内容（去掉异常日志），之前版本创建的不足段大小的文件同时补齐
+        durableEnd = (long) last * segmentSize + end;
         try {
-            truncate(position);
-            // 为下一条日志设置开始的位置
-            raf.seek(position);
+            truncate(durableEnd);
         } catch (Exception e) {
             Panic.panic(e);
         }
         rewind();
     }
 
-    private int calCheckSum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    /**
+     * 创建一个用 0 填满的段文件，并将文件内容和目录项落盘
+     */
+    private FileChannel createSegment(int no) {
+        File f = segmentFile(path, no);
+        FileUtil.createFileCanRW(f);
+        FileChannel fc = FileUtil.getRafAndChannel(f).getValue();
+        try {
+            fillZero(fc, 0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try (FileChannel dir = FileChannel.open(f.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // 部分平台不支持对目录 fsync
         }
-        return xCheck;
+        return fc;
     }
 
-    private byte[] internNext() {
-        if (position + OF_DATA >= fileSize) {
+    /**
+     * 把段文件中 pos 之后到段大小的内容填成 0，文件不足段大小时补齐，已经是 0 的部分不重写
+     * 用 setLength 扩展出的是稀疏文件，第一次写入时仍要分配空间、更新元数据，所以实际写入 0
+     */
+    private void fillZero(FileChannel fc, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(ZERO_CHUNK);
+        boolean written = false;
+        while (pos < segmentSize) {
+            int len = (int) Math.min(ZERO_CHUNK, segmentSize - pos);
+            buf.clear();
+            buf.limit(len);
+            int n = 0;
+            while (n < len) {
+                int r = fc.read(buf, pos + n);
+                if (r < 0) {
+                    break;
+                }
+                n += r;
+            }
+            if (n < len || !isZero(buf.array(), len)) {
+                ByteBuffer zeros = ByteBuffer.wrap(ZEROS, 0, len);
+                while (zeros.hasRemaining()) {
+                    fc.write(zeros, pos + zeros.position());
+                }
+                written = true;
+            }
+            pos += len;
+        }
+        if (written) {
+            fc.force(true);
+        }
+    }
+
+    private static boolean isZero(byte[] buf, int len) {
+        for (int i = 0; i < len; i++) {
+            if (buf[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在后台创建 no 号段，开启新段时由 takeSpare 取用
+     */
+    private void prepareSpare(int no) {
+        FutureTask<FileChannel> task = new FutureTask<>(() -> {
+            // no 号段不属于日志，可能是之前没有正常关闭时留下的预分配段
+            segmentFile(path, no).delete();
+            return createSegment(no);
+        });
+        Thread thread = new Thread(task, "log-preallocate");
+        thread.setDaemon(true);
+        thread.start();
+        spare = task;
+        spareNo = no;
+    }
+
+    /**
+     * 取出预分配的 no 号段，还没有创建完时等待
+     */
+    private FileChannel takeSpare(int no) {
+        if (spare == null || spareNo != no) {
+            return createSegment(no);
+        }
+        FutureTask<FileChannel> task = spare;
+        spare = null;
+        try {
+            return task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Panic.panic(e);
             return null;
         }
+    }
 
-        // 一条日志的格式：[Size(4B)] [CheckSum(4B)] [Data]
-        // 读取size
-        ByteBuffer buf = ByteBuffer.allocate(4);
+    private void removeSegment(int no) {
+        FileChannel fc = segments.remove(no);
+        if (fc == bufferedFc) {
+            bufferedFc = null;
+        }
         try {
-            fc.position(position);
-            fc.read(buf);
+            if (fc != null) {
+                fc.close();
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int size = Parser.parseInt(buf.array());
-        if (position + OF_DATA + size > fileSize) {
+        if (!segmentFile(path, no).delete()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+    }
+
+    private byte[] segmentHeader(int no, int prevLength, int prevChecksum) {
+        byte[] header = Bytes.concat(Parser.int2Byte(no), Parser.int2Byte(segmentSize),
+                Parser.int2Byte(prevLength), Parser.int2Byte(prevChecksum), new byte[4]);
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, OF_HEADER_CHECKSUM);
+        System.arraycopy(Parser.int2Byte((int) crc.getValue()), 0, header, OF_HEADER_CHECKSUM, 4);
+        return header;
+    }
+
+    /**
+     * 读取段头
+     * @return 段头不完整或校验失败时返回 null
+     */
+    private Segment readHeader(int no) {
+        FileChannel fc = segments.get(no);
+        if (fc == null || size(fc) < SEGMENT_HEADER_SIZE) {
+            return null;
+        }
+        byte[] header = new byte[SEGMENT_HEADER_SIZE];
+        readFully(fc, ByteBuffer.wrap(header), 0);
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, OF_HEADER_CHECKSUM);
+        if ((int) crc.getValue() != Parser.parseInt(Arrays.copyOfRange(header, OF_HEADER_CHECKSUM, SEGMENT_HEADER_SIZE))) {
             return null;
         }
+        Segment s = new Segment();
+        s.no = Parser.parseInt(Arrays.copyOfRange(header, OF_SEG_NO, OF_SEG_SIZE));
+        s.size = Parser.parseInt(Arrays.copyOfRange(header, OF_SEG_SIZE, OF_PREV_LENGTH));
+        s.prevLength = Parser.parseInt(Arrays.copyOfRange(header, OF_PREV_LENGTH, OF_PREV_CHECKSUM));
+        s.prevChecksum = Parser.parseInt(Arrays.copyOfRange(header, OF_PREV_CHECKSUM, OF_HEADER_CHECKSUM));
+        if (s.size < SEGMENT_HEADER_SIZE + OF_DATA || (segmentSize != 0 && s.size != segmentSize)) {
+            return null;
+        }
+        return s;
+    }
 
-        // 读取 checkSum + data
-        // allocate(OF_DATA + size)  OF_DATA 代指头部：size + checkSum 两个字段的大小
-        buf = ByteBuffer.allocate(OF_DATA + size);
+    /**
+     * 读取并校验段文件中 pos 处的一条日志（包括 Size 和 Checksum），
+     * 日志留在读缓冲中，从 recordOffset 开始
+     * @param limit 日志不能超出的位置
+     * @return 日志的总长度，日志不完整或校验失败时返回 -1
+     */
+    private int readLog(FileChannel fc, long pos, long limit) {
+        if (pos + OF_DATA > limit) {
+            return -1;
+        }
+        // 一条日志的格式：[Size(4B)] [CheckSum(4B)] [Data]
+        int offset = buffer(fc, pos, OF_DATA, limit);
+        int size = readBuf.getInt(offset + OF_SIZE);
+        boolean compressed = (size & COMPRESSED) != 0;
+        size &= ~COMPRESSED;
+        if (pos + OF_DATA + size > limit) {
+            return -1;
+        }
+        offset = buffer(fc, pos, OF_DATA + size, limit);
+
+        // 校验 checkSum
+        byte[] buf = readBuf.array();
+        recordChecksum.reset();
+        recordChecksum.update(buf, offset + OF_SIZE, LEN_SIZE_OR_CHECKSUM);
+        recordChecksum.update(buf, offset + OF_DATA, size);
+        if ((int) recordChecksum.getValue() != readBuf.getInt(offset + OF_CHECKSUM)) {
+            return -1;
+        }
+        recordOffset = offset;
+        recordCompressed = compressed;
+        return OF_DATA + size;
+    }
+
+    /**
+     * 保证段文件中 [pos, pos + length) 在读缓冲中，不在时从 pos 开始读满缓冲，但不超过 limit
+     * 段文件中 limit 之前的内容只会追加，不会被修改，截断时清空读缓冲
+     * @return pos 在读缓冲中的偏移
+     */
+    private int buffer(FileChannel fc, long pos, int length, long limit) {
+        if (fc == bufferedFc && pos >= bufferedPos && pos + length <= bufferedPos + readBuf.limit()) {
+            return (int) (pos - bufferedPos);
+        }
+        if (length > readBuf.capacity()) {
+            readBuf = ByteBuffer.allocate(length);
+        } else if (readBuf.capacity() > READ_BUFFER_SIZE && length <= READ_BUFFER_SIZE) {
+            readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        readBuf.clear();
+        readBuf.limit((int) Math.min(readBuf.capacity(), limit - pos));
+        bufferedFc = null;
+        readFully(fc, readBuf, pos);
+        readBuf.flip();
+        bufferedFc = fc;
+        bufferedPos = pos;
+        return 0;
+    }
+
+    private void readFully(FileChannel fc, ByteBuffer buf, long pos) {
+        int base = buf.position();
         try {
-            fc.position(position);
-            fc.read(buf);
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, pos + buf.position() - base) < 0) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
+    }
 
-        // 校验 checkSum
-        byte[] log = buf.array();
-        int checkSum1 = calCheckSum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        if (checkSum1 != checkSum2) {
-            return null;
+    private long size(FileChannel fc) {
+        try {
+            return fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+            return 0;
         }
+    }
 
-        position += log.length;
-        return log;
+    private int checksum(byte[] size, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(size);
+        crc.update(data);
+        return (int) crc.getValue();
     }
 
-    @Override
-    public void log(byte[] data) {
+    /**
+     * 读取下一条日志的内容，段中的日志读完后进入下一段
+     * 已经打开的日志中只可能有已落盘的完整日志，读取失败说明文件损坏
+     */
+    private byte[] internNext() {
+        while (position >= readSegEnd) {
+            int next = (int) (readSegStart / segmentSize) + 1;
+            if (!segments.containsKey(next)) {
+                return null;
+            }
+            Segment s = readHeader(next);
+            if (s == null || s.no != next) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            // 用下一段的段头校验刚读完的一段
+            if (verifying && (s.prevLength != readSegEnd - readSegStart - SEGMENT_HEADER_SIZE
+                    || s.prevChecksum != (int) readChecksum.getValue())) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            readSegStart = (long) next * segmentSize;
+            readSegEnd = recordsEnd(next);
+            readChecksum.reset();
+            verifying = true;
+            position = readSegStart + SEGMENT_HEADER_SIZE;
+        }
+        FileChannel fc = segments.get((int) (readSegStart / segmentSize));
+        int length = readLog(fc, position - readSegStart, readSegEnd - readSegStart);
+        if (length < 0) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        byte[] buf = readBuf.array();
+        readChecksum.update(buf, recordOffset, length);
+        lastLsn = position;
+        position += length;
+        if (!recordCompressed) {
+            return Arrays.copyOfRange(buf, recordOffset + OF_DATA, recordOffset + length);
+        }
+        int start = recordOffset + OF_DATA;
+        byte[] data = null;
+        if (length >= OF_DATA + 4) {
+            data = LogCompressor.decompress(buf, start + 4, length - OF_DATA - 4, readBuf.getInt(start));
+        }
+        if (data == null) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        return data;
+    }
 
+    /**
+     * @return 段中日志末尾的 LSN
+     */
+    private long recordsEnd(int no) {
+        long start = (long) no * segmentSize;
+        if (segments.containsKey(no + 1)) {
+            Segment s = readHeader(no + 1);
+            if (s == null) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            return start + SEGMENT_HEADER_SIZE + s.prevLength;
+        }
+        return Math.min(durableEnd, start + size(segments.get(no)));
+    }
+
+    /**
+     * 写入一条日志，返回时日志已经落盘
+     * @param data 日志内容
+     * @return 日志的 LSN
+     */
+    @Override
+    public long log(byte[] data) {
         byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+        if (log.length > segmentSize - SEGMENT_HEADER_SIZE) {
+            Panic.panic(Error.DataToolLargeException);
+        }
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            if (current == null) {
+                current = new Batch();
+            }
+            Batch batch = current;
+            int index = batch.logs.size();
+            batch.logs.add(log);
+            while (!batch.durable) {
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+                // 没有线程在写入时，自己所在的批次一定还在收集中，由自己负责写入
+                Batch toFlush = current;
+                current = null;
+                flushing = true;
+                lock.unlock();
+                long end;
+                try {
+                    end = flush(toFlush);
+                } finally {
+                    lock.lock();
+                }
+                durableEnd = end;
+                toFlush.durable = true;
+                flushing = false;
+                flushed.signalAll();
+            }
+            return batch.lsns[index];
         } finally {
             lock.unlock();
         }
-        updateXCheckSum(log);
     }
 
-    private void updateXCheckSum(byte[] log) {
-        this.xCheckNum = calCheckSum(this.xCheckNum, log);
+    /**
+     * 将一批日志顺序追加到当前段后 fsync，当前段放不下时先让当前段落盘，再开启新段
+     * 同一时刻只有一个线程在执行
+     * @return 写入后日志末尾的 LSN
+     */
+    private long flush(Batch batch) {
+        batch.lsns = new long[batch.logs.size()];
+        List<ByteBuffer> bufs = new ArrayList<>();
+        FileChannel fc = segments.get(segNo);
+        long start = SEGMENT_HEADER_SIZE + segLength;
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(this.xCheckNum)));
+            for (int i = 0; i < batch.logs.size(); i++) {
+                byte[] log = batch.logs.get(i);
+                if (segLength + log.length > segmentSize - SEGMENT_HEADER_SIZE) {
+                    // 新段的段头确认了上一段的内容，所以上一段必须先落盘
+                    write(fc, bufs, start);
+                    fc.force(false);
+                    byte[] header = segmentHeader(segNo + 1, segLength, (int) segChecksum.getValue());
+                    segNo++;
+                    segLength = 0;
+                    segChecksum.reset();
+                    fc = takeSpare(segNo);
+                    segments.put(segNo, fc);
+                    prepareSpare(segNo + 1);
+                    bufs.add(ByteBuffer.wrap(header));
+                    start = 0;
+                }
+                batch.lsns[i] = (long) segNo * segmentSize + SEGMENT_HEADER_SIZE + segLength;
+                bufs.add(ByteBuffer.wrap(log));
+                segChecksum.update(log);
+                segLength += log.length;
+            }
+            write(fc, bufs, start);
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        return (long) segNo * segmentSize + SEGMENT_HEADER_SIZE + segLength;
+    }
+
+    /**
+     * 将 bufs 顺序写到段文件的 pos 处
+     * 只有写入批次的线程会移动 fc 的位置，读取都使用指定位置的读
+     */
+    private void write(FileChannel fc, List<ByteBuffer> bufs, long pos) throws IOException {
+        ByteBuffer[] array = bufs.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer buf : array) {
+            remaining += buf.remaining();
+        }
+        fc.position(pos);
+        while (remaining > 0) {
+            remaining -= fc.write(array);
+        }
+        bufs.clear();
     }
 
     private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calCheckSum(0, data));
+        if (compressThreshold >= 0 && data.length >= compressThreshold) {
+            byte[] compressed = LogCompressor.compress(data);
+            if (compressed != null && compressed.length + 4 < data.length) {
+                byte[] stored = Bytes.concat(Parser.int2Byte(data.length), compressed);
+                byte[] size = Parser.int2Byte(stored.length | COMPRESSED);
+                byte[] checksum = Parser.int2Byte(checksum(size, stored));
+                return Bytes.concat(size, checksum, stored);
+            }
+        }
         byte[] size = Parser.int2Byte(data.length);
+        byte[] checksum = Parser.int2Byte(checksum(size, data));
         return Bytes.concat(size, checksum, data);
     }
 
+    /**
+     * 截断 x 之后的日志，x 所在段中之后的内容清零，x 之后的段被删除
+     */
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            fc.truncate(x);
+            int no = (int) (x / segmentSize);
+            bufferedFc = null;
+            fillZero(segments.get(no), x - (long) no * segmentSize);
+            while (segments.containsKey(no + 1)) {
+                removeSegment(no + 1);
+                no++;
+            }
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public byte[] next() {
+    public void purge(long lsn) {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null) {
-                return null;
+            int keep = (int) (Math.min(lsn, durableEnd) / segmentSize);
+            while (firstSegNo < keep) {
+                removeSegment(firstSegNo);
+                firstSegNo++;
             }
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long nextLsn() {
+        return durableEnd;
+    }
+
+    @Override
+    public long lsn() {
+        return lastLsn;
+    }
+
+    @Override
+    public byte[] next() {
+        lock.lock();
+        try {
+            return internNext();
         } finally {
             lock.unlock();
         }
@@ -219,16 +759,44 @@ public class LoggerImpl implements Logger{
 
     @Override
     public void rewind() {
-        position = OF_SIZE + LEN_SIZE_OR_CHECKSUM;
+        rewind((long) firstSegNo * segmentSize + SEGMENT_HEADER_SIZE);
+    }
+
+    @Override
+    public void rewind(long lsn) {
+        lock.lock();
+        try {
+            int no = (int) (lsn / segmentSize);
+            if (!segments.containsKey(no)) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            readSegStart = (long) no * segmentSize;
+            readSegEnd = recordsEnd(no);
+            readChecksum.reset();
+            position = Math.max(lsn, readSegStart + SEGMENT_HEADER_SIZE);
+            verifying = position == readSegStart + SEGMENT_HEADER_SIZE;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void close() {
         try {
-            fc.close();
-            raf.close();
+            if (spare != null) {
+                // 没有用上的预分配段直接删除
+                int no = spareNo;
+                takeSpare(no).close();
+                if (!segmentFile(path, no).delete()) {
+                    Panic.panic(Error.FileCannotRWException);
+                }
+            }
+            for (FileChannel fc : segments.values()) {
+                fc.close();
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
+        segments.clear();
     }
 }
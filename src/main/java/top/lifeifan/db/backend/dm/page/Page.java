@@ -10,6 +10,15 @@ public interface Page {
     void release();
     void setDirty(boolean dirty);
     boolean isDirty();
+    /**
+     * 修改页面之前记录 recLsn：该修改对应的日志的 LSN 不会小于它
+     * 页面写回（setDirty(false)）之前保留最小的 recLsn
+     */
+    void setRecLsn(long lsn);
+    /**
+     * @return 页面上一次写回之后第一个修改的 recLsn，为 0 表示没有需要日志重做的修改
+     */
+    long getRecLsn();
     int getPageNumber();
     byte[] getData();
 }
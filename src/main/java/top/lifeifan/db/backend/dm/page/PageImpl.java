@@ -3,6 +3,7 @@ package top.lifeifan.db.backend.dm.page;
 import top.lifeifan.db.backend.dm.pageCache.PageCache;
 
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author lifeifan
@@ -12,6 +13,7 @@ public class PageImpl implements Page{
     private int pageNumber;
     private byte[] data;
     private boolean dirty;
+    private long recLsn;
     private Lock lock;
 
     private PageCache pageCache;
@@ -20,6 +22,7 @@ public class PageImpl implements Page{
         this.pageNumber = pageNumber;
         this.data = data;
         this.pageCache = pageCache;
+        this.lock = new ReentrantLock();
     }
 
     @Override
@@ -38,8 +41,23 @@ public class PageImpl implements Page{
     }
 
     @Override
-    public void setDirty(boolean dirty) {
+    public synchronized void setDirty(boolean dirty) {
         this.dirty = dirty;
+        if (!dirty) {
+            recLsn = 0;
+        }
+    }
+
+    @Override
+    public synchronized void setRecLsn(long lsn) {
+        if (recLsn == 0 || lsn < recLsn) {
+            recLsn = lsn;
+        }
+    }
+
+    @Override
+    public synchronized long getRecLsn() {
+        return recLsn;
     }
 
     @Override
@@ -1,6 +1,7 @@
 package top.lifeifan.db.backend.dm.page;
 
 import top.lifeifan.db.backend.dm.pageCache.PageCache;
+import top.lifeifan.db.backend.utils.Parser;
 import top.lifeifan.db.backend.utils.RandomUtil;
 
 import java.util.Arrays;
@@ -10,6 +11,7 @@ import java.util.Arrays;
  * ValidCheck
  * db启动时在 100~107处填充一个随机字节，db关闭时将其拷贝到 108~115字节
  * 以此来判断上一次数据库是否正常关闭
+ * 116~123 处记录最近一次完成的检查点日志的 LSN，为 0 表示还没有检查点
  * @author lifeifan
  * @since 2023-02-04
  */
@@ -17,6 +19,7 @@ public class PageOne {
 
     private static final Integer LEN_VC = 8;
     private static final Integer OF_VC = 100;
+    private static final Integer OF_CHECKPOINT = OF_VC + 2 * LEN_VC;
 
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
@@ -51,6 +54,15 @@ public class PageOne {
                 Arrays.copyOfRange(raw, OF_VC + LEN_VC, OF_VC + 2 * LEN_VC));
     }
 
+    public static void setCheckpoint(Page page, long lsn) {
+        page.setDirty(true);
+        System.arraycopy(Parser.long2Byte(lsn), 0, page.getData(), OF_CHECKPOINT, 8);
+    }
+
+    public static long getCheckpoint(Page page) {
+        return Parser.parseLong(Arrays.copyOfRange(page.getData(), OF_CHECKPOINT, OF_CHECKPOINT + 8));
+    }
+
 
 
 }
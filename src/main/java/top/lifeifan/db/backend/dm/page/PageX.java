@@ -8,13 +8,15 @@ import java.util.Arrays;
 /**
  * PageX管理普通页
  * 普通页结构
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [PageLSN] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * PageLSN: 8字节 页面已经包含的最后一条日志的 LSN，恢复时跳过不大于它的日志
  */
 public class PageX {
     
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    private static final short OF_PAGE_LSN = 2;
+    private static final short OF_DATA = OF_PAGE_LSN + 8;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
     public static byte[] initRaw() {
@@ -24,7 +26,26 @@ public class PageX {
     }
 
     private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, 2);
+    }
+
+    public static long getPageLsn(Page pg) {
+        return Parser.parseLong(Arrays.copyOfRange(pg.getData(), OF_PAGE_LSN, OF_DATA));
+    }
+
+    /**
+     * 记录页面包含了 lsn 对应的日志
+     * 同一页面上的修改写日志的顺序和修改的顺序可能不同，只保留较大的 LSN
+     */
+    public static void setPageLsn(Page pg, long lsn) {
+        pg.lock();
+        try {
+            if (lsn > getPageLsn(pg)) {
+                System.arraycopy(Parser.long2Byte(lsn), 0, pg.getData(), OF_PAGE_LSN, 8);
+            }
+        } finally {
+            pg.unLock();
+        }
     }
 
     // 获取pg的FSO
@@ -0,0 +1,45 @@
+package top.lifeifan.db.backend.dm.pageCache;
+
+/**
+ * 页框池
+ *
+ * 页面数据放在可复用的页框中，页面被移出缓存后页框交还给池，供下一个加载的页面使用，
+ * 缓存容量内的页框只分配一次，缺页不再产生新的 8KB 垃圾。
+ * 页面被移出缓存时一定没有被引用，所以页框被复用时不会再有人访问旧页面的数据。
+ * @author lifeifan
+ * @since 2023-03-22
+ */
+class FramePool {
+
+    private final byte[][] free;
+    private int size;
+
+    /**
+     * @param capacity 最多保留的空闲页框数
+     */
+    FramePool(int capacity) {
+        this.free = new byte[capacity][];
+        this.size = 0;
+    }
+
+    /**
+     * 取出一个页框，内容是上一个使用者留下的数据，由调用者覆盖
+     */
+    synchronized byte[] acquire() {
+        if (size == 0) {
+            return new byte[PageCache.PAGE_SIZE];
+        }
+        byte[] frame = free[--size];
+        free[size] = null;
+        return frame;
+    }
+
+    /**
+     * 归还页框，池满时直接丢弃
+     */
+    synchronized void release(byte[] frame) {
+        if (size < free.length) {
+            free[size++] = frame;
+        }
+    }
+}
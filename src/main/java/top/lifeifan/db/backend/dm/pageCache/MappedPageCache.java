@@ -0,0 +1,357 @@
+package top.lifeifan.db.backend.dm.pageCache;
+
+import top.lifeifan.db.backend.common.AbstractCache;
+import top.lifeifan.db.backend.dm.page.Page;
+import top.lifeifan.db.backend.dm.page.PageImpl;
+import top.lifeifan.db.backend.utils.Panic;
+import top.lifeifan.db.common.Error;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于内存映射的页面缓存
+ *
+ * 数据库文件按段映射到内存，页面的读取和写回都是对映射区域的内存拷贝，不再经过 read/write 系统调用，
+ * 冷页面由操作系统的页缓存保留，堆上只保存正在被引用的页面，引用数归零即写回映射区域并移出缓存。
+ * 页面数据使用 FramePool 中可复用的页框。
+ * 只映射已经完整存在于文件中的段，文件末尾不足一段的页面仍然通过 FileChannel 读写，
+ * 这样映射不会把文件撑大，文件长度始终等于页数 * 页大小。
+ * 通过启动参数 -Ddb.pagecache.mmap=true 启用
+ * @author lifeifan
+ * @since 2023-03-20
+ */
+public class MappedPageCache extends AbstractCache<Page> implements PageCache {
+
+    private static final Integer MEM_MIN_LIM = 10;
+    // 每段映射 128 页，即 1MB
+    static final int SEGMENT_PAGES = 128;
+    private static final long SEGMENT_SIZE = (long) SEGMENT_PAGES * PAGE_SIZE;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel fileChannel;
+
+    // 当前打开的数据库文件的页数，新页面写入之后才计入
+    private AtomicInteger pageNumbers;
+    // newPage 互斥，页号在写入之前分配
+    private final Object newPageLock = new Object();
+
+    // 已映射的段，下标为段号，只在 segmentLock 下扩容
+    private volatile MappedByteBuffer[] segments;
+    private final Object segmentLock = new Object();
+
+    // 写入后还未 force 的段
+    private Set<Integer> unsyncedSegments;
+    // sync 互斥，一次 sync 返回时之前写入的数据都已落盘，不会因为另一个线程正在 force 而提前返回
+    private final Object syncLock = new Object();
+    // 是否有通过 FileChannel 写入但还未 fsync 的数据
+    private AtomicBoolean unsynced;
+    private FramePool framePool;
+
+    public MappedPageCache(int maxResource, RandomAccessFile randomAccessFile, FileChannel fileChannel) {
+        super(maxResource);
+        if (maxResource < MEM_MIN_LIM) {
+            Panic.panic(Error.MemTooSmallException);
+        }
+        long length = 0;
+        try {
+            length = randomAccessFile.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        this.randomAccessFile = randomAccessFile;
+        this.fileChannel = fileChannel;
+        this.pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+        this.segments = new MappedByteBuffer[0];
+        this.unsyncedSegments = ConcurrentHashMap.newKeySet();
+        this.unsynced = new AtomicBoolean(false);
+        this.framePool = new FramePool(maxResource);
+    }
+
+    /**
+     * 从映射区域中拷贝出页数据，页面所在的段还未映射时从文件读取
+     * @param key pageNo
+     * @return page
+     */
+    @Override
+    protected Page getForCache(long key) throws Exception {
+        int pageNo = (int) key;
+        byte[] data = framePool.acquire();
+        ByteBuffer seg = segment(pageNo);
+        if (seg != null) {
+            seg.position(offsetInSegment(pageNo));
+            seg.get(data);
+            return new PageImpl(pageNo, data, this);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long offset = pageOffset(pageNo);
+        try {
+            while (buf.hasRemaining()) {
+                if (fileChannel.read(buf, offset + buf.position()) < 0) {
+                    Arrays.fill(data, buf.position(), PAGE_SIZE, (byte) 0);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return new PageImpl(pageNo, data, this);
+    }
+
+    /**
+     * 引用数归零时调用，脏页写回映射区域，由操作系统异步落盘，之后回收页框
+     * @param page page
+     */
+    @Override
+    protected void releaseForCache(Page page) {
+        if (page.isDirty()) {
+            write(page);
+            page.setDirty(false);
+        }
+        framePool.release(page.getData());
+    }
+
+    @Override
+    public int newPage(byte[] initData) {
+        synchronized (newPageLock) {
+            int pageNo = pageNumbers.get() + 1;
+            write(new PageImpl(pageNo, initData, null));
+            pageNumbers.set(pageNo);
+            return pageNo;
+        }
+    }
+
+    @Override
+    public Page getPage(int pageNo) throws Exception {
+        return get(pageNo);
+    }
+
+    /**
+     * 映射区域的预读由操作系统在缺页时完成
+     */
+    @Override
+    public void prefetch(int pageNo, int count) {
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        sync();
+        try {
+            fileChannel.close();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void release(Page page) {
+        release(page.getPageNumber());
+    }
+
+    /**
+     * 截断数据库文件到指定页码
+     * 超出新长度的段先落盘，再从 segments 中移除并立即解除映射，之后才修改文件长度：
+     * 映射还在时截断文件，访问被截掉的部分会收到 SIGBUS，Windows 上则无法截断。
+     * 只在恢复时调用，此时没有其他线程持有段的视图
+     * @param maxPageNo 最大页码
+     */
+    @Override
+    public void truncateByPageNo(int maxPageNo) {
+        long size = pageOffset(maxPageNo + 1);
+        synchronized (segmentLock) {
+            sync();
+            int keep = (int) (size / SEGMENT_SIZE);
+            if (keep < segments.length) {
+                MappedByteBuffer[] dropped = Arrays.copyOfRange(segments, keep, segments.length);
+                segments = Arrays.copyOf(segments, keep);
+                for (int i = 0; i < dropped.length; i++) {
+                    unsyncedSegments.remove(keep + i);
+                    unmap(dropped[i]);
+                }
+            }
+            try {
+                randomAccessFile.setLength(size);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            pageNumbers.set(maxPageNo);
+        }
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pageNumbers.intValue();
+    }
+
+    @Override
+    public void flushPage(Page page) {
+        write(page);
+        sync();
+    }
+
+    /**
+     * 将所有脏页写回并落盘，包括正在被引用的页面，调用时不能有并发的页面修改
+     */
+    @Override
+    public void flushAll() {
+        forEachResident((pageNo, page) -> {
+            if (page.isDirty()) {
+                write(page);
+                page.setDirty(false);
+            }
+        });
+        sync();
+    }
+
+    @Override
+    public long minRecLsn() {
+        long[] min = {Long.MAX_VALUE};
+        forEachResident((pageNo, page) -> {
+            long lsn = page.getRecLsn();
+            if (page.isDirty() && lsn > 0) {
+                min[0] = Math.min(min[0], lsn);
+            }
+        });
+        // 扫描之前淘汰写回的页面不在扫描结果中，fsync 之后才能不计入
+        sync();
+        return min[0];
+    }
+
+    /**
+     * 将page内数据写入映射区域或文件，不落盘
+     * @param page page
+     */
+    private void write(Page page) {
+        int pageNo = page.getPageNumber();
+        ByteBuffer seg = segment(pageNo);
+        if (seg != null) {
+            seg.position(offsetInSegment(pageNo));
+            seg.put(page.getData());
+            unsyncedSegments.add(segmentIndex(pageNo));
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(page.getData());
+        long offset = pageOffset(pageNo);
+        try {
+            while (buf.hasRemaining()) {
+                fileChannel.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        unsynced.set(true);
+    }
+
+    /**
+     * 将写入映射区域和文件的数据落盘
+     */
+    private void sync() {
+        synchronized (syncLock) {
+            MappedByteBuffer[] segs = segments;
+            for (Integer i : unsyncedSegments) {
+                // 先移除再 force，force 期间再次写入的段会重新加入，留给下一次 sync
+                unsyncedSegments.remove(i);
+                if (i < segs.length) {
+                    segs[i].force();
+                }
+            }
+            if (!unsynced.getAndSet(false)) {
+                return;
+            }
+            try {
+                fileChannel.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /**
+     * 立即解除映射，不等待 GC 回收，之后不能再访问该段及其视图
+     * Java 9 之后通过 Unsafe.invokeCleaner，Java 8 通过 DirectByteBuffer.cleaner
+     */
+    private static void unmap(MappedByteBuffer buf) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buf.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buf);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buf);
+        } catch (ReflectiveOperationException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 获取页面所在段的映射，返回的是独立的视图，position 不与其他线程共享
+     * @return 所在段还未完整写入文件时返回 null
+     */
+    private ByteBuffer segment(int pageNo) {
+        int index = segmentIndex(pageNo);
+        MappedByteBuffer[] segs = segments;
+        if (index < segs.length) {
+            return segs[index].duplicate();
+        }
+        synchronized (segmentLock) {
+            long fileLength = 0;
+            try {
+                fileLength = fileChannel.size();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            if ((index + 1) * SEGMENT_SIZE > fileLength) {
+                return null;
+            }
+            // 依次映射到所需的段为止，段号小于 index 的段一定也已经完整
+            segs = segments;
+            if (index >= segs.length) {
+                MappedByteBuffer[] grown = Arrays.copyOf(segs, index + 1);
+                try {
+                    for (int i = segs.length; i <= index; i++) {
+                        grown[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, i * SEGMENT_SIZE, SEGMENT_SIZE);
+                    }
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                segments = grown;
+            }
+            return segments[index].duplicate();
+        }
+    }
+
+    private static int segmentIndex(int pageNo) {
+        return (pageNo - 1) / SEGMENT_PAGES;
+    }
+
+    private static int offsetInSegment(int pageNo) {
+        return ((pageNo - 1) % SEGMENT_PAGES) * PAGE_SIZE;
+    }
+
+    /**
+     * 计算指定页在文件中的位置，页码从1开始算
+     */
+    private static long pageOffset(int pageNo) {
+        return (long) (pageNo - 1) * PAGE_SIZE;
+    }
+}
@@ -1,6 +1,7 @@
 package top.lifeifan.db.backend.dm.pageCache;
 
 import javafx.util.Pair;
+import top.lifeifan.db.backend.common.CacheStats;
 import top.lifeifan.db.backend.dm.page.Page;
 import top.lifeifan.db.backend.utils.FileUtil;
 
@@ -16,6 +17,10 @@ public interface PageCache {
 
     // 页空间大小为 8KB
     Integer PAGE_SIZE = 1 << 13;
+    // 启动参数，为 true 时使用内存映射的页面缓存
+    String MMAP_OPTION = "db.pagecache.mmap";
+    // 启动参数，每次预读的页数，为 0 时关闭预读
+    String READ_AHEAD_OPTION = "db.pagecache.readahead";
 
     int newPage(byte[] initData);
     Page getPage(int pageNo) throws Exception;
@@ -25,18 +30,76 @@ public interface PageCache {
     void truncateByPageNo(int maxPageNo);
     int getPageNumber();
     void flushPage(Page page);
+    void flushAll();
+    /**
+     * 为检查点计算重做的起点，不写回脏页：
+     * 返回仍为脏页的页面中最小的 recLsn，并 fsync 已经写回的页面
+     * @return 没有带 recLsn 的脏页时返回 Long.MAX_VALUE
+     */
+    long minRecLsn();
 
-    static PageCacheImpl create(String path, long memory) {
+    /**
+     * 提示即将访问从 pageNo 开始的 count 页，缓存可以提前异步加载，也可以忽略
+     */
+    void prefetch(int pageNo, int count);
+
+    /**
+     * @return 页面缓存的命中统计
+     */
+    CacheStats getStats();
+
+    static PageCache create(String path, long memory) {
+        return create(path, memory, Boolean.getBoolean(MMAP_OPTION));
+    }
+
+    /**
+     * @param mmap 是否使用内存映射的页面缓存
+     */
+    static PageCache create(String path, long memory, boolean mmap) {
+        if (!mmap) {
+            return create(path, memory, PageFlusher.DEFAULT_INTERVAL, PageFlusher.DEFAULT_DIRTY_RATIO);
+        }
+        File f= new File(path + PageCacheImpl.DB_FILE_SUFFIX);
+        FileUtil.createFileCanRW(f);
+        Pair<RandomAccessFile, FileChannel> pair = FileUtil.getRafAndChannel(f);
+        return new MappedPageCache((int) (memory / PAGE_SIZE), pair.getKey(), pair.getValue());
+    }
+
+    /**
+     * @param flushInterval 后台刷脏的间隔，毫秒
+     * @param dirtyRatio 脏页比例超过该值时提前刷脏
+     */
+    static PageCacheImpl create(String path, long memory, long flushInterval, double dirtyRatio) {
         File f= new File(path + PageCacheImpl.DB_FILE_SUFFIX);
         FileUtil.createFileCanRW(f);
         Pair<RandomAccessFile, FileChannel> pair = FileUtil.getRafAndChannel(f);
-        return new PageCacheImpl((int) (memory / PAGE_SIZE),pair.getKey(), pair.getValue());
+        PageCacheImpl pc = new PageCacheImpl((int) (memory / PAGE_SIZE),pair.getKey(), pair.getValue(),
+                flushInterval, dirtyRatio);
+        pc.own(f);
+        return pc;
+    }
+
+    static PageCache open(String path, long memory) {
+        return open(path, memory, Boolean.getBoolean(MMAP_OPTION));
+    }
+
+    static PageCache open(String path, long memory, boolean mmap) {
+        if (!mmap) {
+            return open(path, memory, PageFlusher.DEFAULT_INTERVAL, PageFlusher.DEFAULT_DIRTY_RATIO);
+        }
+        File f = new File(path + PageCacheImpl.DB_FILE_SUFFIX);
+        FileUtil.checkRW(f);
+        Pair<RandomAccessFile, FileChannel> pair = FileUtil.getRafAndChannel(f);
+        return new MappedPageCache((int) (memory / PAGE_SIZE), pair.getKey(), pair.getValue());
     }
 
-    static PageCacheImpl open(String path, long memory) {
+    static PageCacheImpl open(String path, long memory, long flushInterval, double dirtyRatio) {
         File f = new File(path + PageCacheImpl.DB_FILE_SUFFIX);
         FileUtil.checkRW(f);
         Pair<RandomAccessFile, FileChannel> pair = FileUtil.getRafAndChannel(f);
-        return new PageCacheImpl((int) (memory / PAGE_SIZE),pair.getKey(), pair.getValue());
+        PageCacheImpl pc = new PageCacheImpl((int) (memory / PAGE_SIZE),pair.getKey(), pair.getValue(),
+                flushInterval, dirtyRatio);
+        pc.own(f);
+        return pc;
     }
 }
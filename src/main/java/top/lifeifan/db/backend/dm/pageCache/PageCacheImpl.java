@@ -1,38 +1,84 @@
 package top.lifeifan.db.backend.dm.pageCache;
 
 import top.lifeifan.db.backend.common.AbstractCache;
+import top.lifeifan.db.backend.common.TwoQueuePolicy;
 import top.lifeifan.db.backend.dm.page.Page;
 import top.lifeifan.db.backend.dm.page.PageImpl;
 import top.lifeifan.db.backend.utils.Panic;
 import top.lifeifan.db.common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * 页面缓存（缓冲池）
+ *
+ * 引用数归零的页面继续留在内存中，缓存满时按 2Q 策略淘汰，脏页在淘汰前写回磁盘，全表扫描不会挤出热点页面。
+ * 脏页的写回只 write 不 fsync，由后台的 PageFlusher 批量写回后统一 fsync。
+ * 单个页面的读写使用带偏移量的 FileChannel.read/write，不同页面的 I/O 可以并行；
+ * 批量刷脏时页号连续的脏页通过一次 gathering write 写回。
+ * 页面数据使用 FramePool 中可复用的页框，页面被淘汰后页框留给下一次缺页。
+ * 检测到顺序访问时由 PagePrefetcher 异步预读后续页面，每次预读的页数由启动参数 -Ddb.pagecache.readahead 指定。
  * @author lifeifan
  * @since 2023-02-04
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private static final Integer MEM_MIN_LIM = 10;
+    // 一次 gathering write 最多写回的连续页数
+    private static final int MAX_RUN = 64;
     public static final String DB_FILE_SUFFIX = ".db";
 
+    // 进程内每个数据库文件当前的使用者
+    private static final Map<String, PageCacheImpl> OWNERS = new ConcurrentHashMap<>();
+
     private RandomAccessFile randomAccessFile;
     private FileChannel fileChannel;
-    private Lock fileLock;
 
-    // 当前打开的数据库文件的页数
+    // 当前打开的数据库文件的页数，新页面写入文件之后才计入
     private AtomicInteger pageNumbers;
+    // newPage 互斥，页号在写入之前分配
+    private final Object newPageLock = new Object();
+
+    // 是否有已 write 但还未 fsync 的数据
+    private AtomicBoolean unsynced;
+    // sync 互斥，一次 sync 返回时之前写入的数据都已落盘，不会因为另一个线程正在 force 而提前返回
+    private final Object syncLock = new Object();
+    private PageFlusher flusher;
+    private PagePrefetcher prefetcher;
+    private String ownedPath;
+
+    // 正在被批量写回的页面，写回完成前这些页面的读取和单页写回需要等待
+    private Map<Integer, CountDownLatch> pendingWrites;
+    // 批量写回使用的缓冲区，只由刷脏线程使用
+    private ByteBuffer[] runBuffers;
+    private FramePool framePool;
 
     public PageCacheImpl(int maxResource, RandomAccessFile randomAccessFile,
                          FileChannel fileChannel) {
-        super(maxResource);
+        this(maxResource, randomAccessFile, fileChannel,
+                PageFlusher.DEFAULT_INTERVAL, PageFlusher.DEFAULT_DIRTY_RATIO);
+    }
+
+    /**
+     * @param flushInterval 后台刷脏的间隔，毫秒
+     * @param dirtyRatio 释放的脏页占页框数的比例超过该值时提前刷脏
+     */
+    public PageCacheImpl(int maxResource, RandomAccessFile randomAccessFile,
+                         FileChannel fileChannel, long flushInterval, double dirtyRatio) {
+        super(maxResource, new TwoQueuePolicy(maxResource));
         if (maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -44,8 +90,18 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.randomAccessFile = randomAccessFile;
         this.fileChannel = fileChannel;
-        this.fileLock = new ReentrantLock();
         this.pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+        this.unsynced = new AtomicBoolean(false);
+        this.pendingWrites = new ConcurrentHashMap<>();
+        this.runBuffers = new ByteBuffer[MAX_RUN];
+        for (int i = 0; i < MAX_RUN; i++) {
+            runBuffers[i] = ByteBuffer.allocateDirect(PAGE_SIZE);
+        }
+        this.framePool = new FramePool(maxResource);
+        this.flusher = new PageFlusher(this, maxResource, flushInterval, dirtyRatio);
+        // 等待预读的页面不超过页框数的四分之一
+        this.prefetcher = new PagePrefetcher(this,
+                Integer.getInteger(READ_AHEAD_OPTION, PagePrefetcher.defaultWindow()), maxResource / 4);
     }
 
     /**
@@ -59,43 +115,104 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         int pageNo = (int) key;
         long offset = PageCacheImpl.pageOffset(pageNo);
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        awaitPendingWrite(pageNo);
+        byte[] frame = framePool.acquire();
+        ByteBuffer buf = ByteBuffer.wrap(frame);
         try {
-            fileChannel.position(offset);
-            fileChannel.read(buf);
+            while (buf.hasRemaining()) {
+                int n = fileChannel.read(buf, offset + buf.position());
+                if (n < 0) {
+                    // 超出文件末尾的部分填 0，覆盖页框中的旧数据
+                    Arrays.fill(frame, buf.position(), PAGE_SIZE, (byte) 0);
+                    break;
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
-        return new PageImpl(pageNo, buf.array(), this);
+        return new PageImpl(pageNo, frame, this);
     }
 
+    /**
+     * 页面被淘汰或缓存关闭时调用，脏页需要先写回，之后回收页框
+     * @param page page
+     */
     @Override
     protected void releaseForCache(Page page) {
         if (page.isDirty()) {
-            flush(page);
+            write(page);
             page.setDirty(false);
         }
+        framePool.release(page.getData());
     }
 
     @Override
     public int newPage(byte[] initData) {
-        int pageNo = pageNumbers.incrementAndGet();
-        Page page = new PageImpl(pageNo, initData, null);
-        // 新建的页面需要立刻写回
-        flushPage(page);
-        return pageNo;
+        synchronized (newPageLock) {
+            int pageNo = pageNumbers.get() + 1;
+            Page page = new PageImpl(pageNo, initData, null);
+            // 新建的页面需要立刻写入文件，fsync 交给下一次批量刷脏
+            write(page);
+            // 写入之后才增加页数，预读线程按页数截断范围，不会把还未写入的页面当作全 0 页缓存
+            pageNumbers.set(pageNo);
+            return pageNo;
+        }
     }
 
     @Override
     public Page getPage(int pageNo) throws Exception {
+        prefetcher.onAccess(pageNo);
         return get(pageNo);
     }
 
+    @Override
+    public void prefetch(int pageNo, int count) {
+        prefetcher.hint(pageNo, count);
+    }
+
+    /**
+     * 由预读线程调用，将页面加载进缓存但不引用
+     * @return 页面已在缓存中或无法加载时返回 false
+     */
+    boolean prefetchPage(int pageNo) {
+        return preload(pageNo);
+    }
+
+    /**
+     * @return 预读进缓存的总页数
+     */
+    long prefetchedPages() {
+        return prefetcher.prefetched();
+    }
+
+    /**
+     * 登记为数据库文件的使用者
+     * 同一个文件未关闭就被再次打开时（如崩溃后在同一进程内重启），先停止旧实例的后台刷脏，
+     * 避免旧实例把过期的页面写进新实例正在使用的文件
+     * @param f 数据库文件
+     */
+    void own(File f) {
+        try {
+            ownedPath = f.getCanonicalPath();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        PageCacheImpl previous = OWNERS.put(ownedPath, this);
+        if (previous != null) {
+            previous.prefetcher.close();
+            previous.flusher.close();
+        }
+    }
+
     @Override
     public void close() {
+        if (ownedPath != null) {
+            OWNERS.remove(ownedPath, this);
+        }
+        prefetcher.close();
+        flusher.close();
         super.close();
+        sync();
         try {
             fileChannel.close();
             randomAccessFile.close();
@@ -106,6 +223,9 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     @Override
     public void release(Page page) {
+        if (page.isDirty()) {
+            flusher.noteDirty();
+        }
         release(page.getPageNumber());
     }
 
@@ -131,26 +251,172 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     @Override
     public void flushPage(Page page) {
-        flush(page);
+        write(page);
+        sync();
     }
 
     /**
-     * 将page内数据刷入磁盘文件
+     * 将所有脏页写回并 fsync，包括正在被引用的页面，调用时不能有并发的页面修改
+     */
+    @Override
+    public void flushAll() {
+        forEachResident((pageNo, page) -> {
+            if (page.isDirty()) {
+                write(page);
+                page.setDirty(false);
+            }
+        });
+        sync();
+    }
+
+    /**
+     * 与 flushDirtyPages 互斥：批量写回的页面在拷贝时就清除了脏标记，要等写回并 fsync 之后才能不计入
+     */
+    @Override
+    public synchronized long minRecLsn() {
+        long[] min = {Long.MAX_VALUE};
+        forEachResident((pageNo, page) -> {
+            long lsn = page.getRecLsn();
+            if (page.isDirty() && lsn > 0) {
+                min[0] = Math.min(min[0], lsn);
+            }
+        });
+        // 扫描之前淘汰写回的页面不在扫描结果中，fsync 之后才能不计入
+        sync();
+        return min[0];
+    }
+
+    /**
+     * 将未被引用的脏页按页号排序后批量写回，整批只 fsync 一次
+     * 正在被引用的页面可能正在被修改，留到下一轮
+     * 只由刷脏线程调用，是唯一会移动 channel position 的地方
+     * @return 写回的页数
+     */
+    synchronized int flushDirtyPages() {
+        List<Long> dirty = new ArrayList<>();
+        forEachResident((pageNo, page) -> {
+            if (page.isDirty()) {
+                dirty.add(pageNo);
+            }
+        });
+        Collections.sort(dirty);
+
+        int written = 0;
+        int runStart = 0, runLength = 0;
+        CountDownLatch runLatch = new CountDownLatch(1);
+        for (long key : dirty) {
+            int pageNo = (int) key;
+            if (runLength > 0 && (pageNo != runStart + runLength || runLength == MAX_RUN)) {
+                writeRun(runStart, runLength, runLatch);
+                written += runLength;
+                runLength = 0;
+                runLatch = new CountDownLatch(1);
+            }
+            // 在页面未被引用时拷贝出页面内容，拷贝之后页面即可被重新引用和修改
+            ByteBuffer buf = runBuffers[runLength];
+            CountDownLatch latch = runLatch;
+            boolean[] copied = new boolean[1];
+            applyIfUnpinned(pageNo, page -> {
+                if (page.isDirty()) {
+                    buf.clear();
+                    buf.put(page.getData());
+                    buf.flip();
+                    page.setDirty(false);
+                    pendingWrites.put(pageNo, latch);
+                    copied[0] = true;
+                }
+            });
+            if (copied[0]) {
+                if (runLength == 0) {
+                    runStart = pageNo;
+                }
+                runLength++;
+            }
+        }
+        if (runLength > 0) {
+            writeRun(runStart, runLength, runLatch);
+            written += runLength;
+        }
+        sync();
+        return written;
+    }
+
+    /**
+     * 将 runBuffers 中页号从 startPageNo 开始的连续 length 个页面一次写回
+     */
+    private void writeRun(int startPageNo, int length, CountDownLatch latch) {
+        ByteBuffer[] bufs = new ByteBuffer[length];
+        System.arraycopy(runBuffers, 0, bufs, 0, length);
+        try {
+            fileChannel.position(pageOffset(startPageNo));
+            while (bufs[length - 1].hasRemaining()) {
+                fileChannel.write(bufs);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            for (int i = 0; i < length; i++) {
+                pendingWrites.remove(startPageNo + i, latch);
+            }
+            latch.countDown();
+        }
+        unsynced.set(true);
+    }
+
+    /**
+     * 等待页面的批量写回完成，保证同一页面按修改的顺序落盘，且读取时不会读到过期的内容
+     */
+    private void awaitPendingWrite(int pageNo) {
+        CountDownLatch latch = pendingWrites.get(pageNo);
+        if (latch == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 将page内数据写入磁盘文件，不 fsync
      * @param page page
      */
-    private void flush(Page page) {
+    private void write(Page page) {
         int pageNo = page.getPageNumber();
         long offset = pageOffset(pageNo);
-        fileLock.lock();
+        awaitPendingWrite(pageNo);
         try {
             ByteBuffer buf = ByteBuffer.wrap(page.getData());
-            fileChannel.position(offset);
-            fileChannel.write(buf);
-            fileChannel.force(false);
+            while (buf.hasRemaining()) {
+                fileChannel.write(buf, offset + buf.position());
+            }
         } catch (IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
+        }
+        unsynced.set(true);
+    }
+
+    /**
+     * 将已写入的数据 fsync 到磁盘
+     */
+    private void sync() {
+        synchronized (syncLock) {
+            if (!unsynced.getAndSet(false)) {
+                return;
+            }
+            try {
+                fileChannel.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
         }
     }
 
@@ -0,0 +1,99 @@
+package top.lifeifan.db.backend.dm.pageCache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台刷脏线程
+ *
+ * 每隔 interval 毫秒，或释放的脏页数超过 dirtyRatio * 页框数时被唤醒，
+ * 由 PageCacheImpl 将未被引用的脏页按页号顺序批量写回，每批只 fsync 一次。
+ * 页面修改先写日志，所以刷脏的时机不影响持久性，只影响恢复时需要重做的日志量。
+ * @author lifeifan
+ * @since 2023-03-13
+ */
+class PageFlusher {
+
+    // 默认每秒刷一次
+    static final long DEFAULT_INTERVAL = 1000;
+    // 默认脏页超过四分之一时提前刷
+    static final double DEFAULT_DIRTY_RATIO = 0.25;
+
+    private final PageCacheImpl pageCache;
+    private final long interval;
+    private final int dirtyThreshold;
+
+    // 上一轮刷脏之后被释放的脏页数
+    private final AtomicInteger dirtyCount;
+    private final Lock lock;
+    private final Condition wakeup;
+    private volatile boolean closed;
+    private final Thread thread;
+
+    PageFlusher(PageCacheImpl pageCache, int maxResource, long interval, double dirtyRatio) {
+        this.pageCache = pageCache;
+        this.interval = interval;
+        this.dirtyThreshold = Math.max(1, (int) (maxResource * dirtyRatio));
+        this.dirtyCount = new AtomicInteger(0);
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+        this.thread = new Thread(this::run, "page-flusher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * 一个脏页被释放
+     */
+    void noteDirty() {
+        if (dirtyCount.incrementAndGet() == dirtyThreshold) {
+            lock.lock();
+            try {
+                wakeup.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            lock.lock();
+            try {
+                if (dirtyCount.get() < dirtyThreshold && !closed) {
+                    wakeup.await(interval, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (closed) {
+                return;
+            }
+            dirtyCount.set(0);
+            pageCache.flushDirtyPages();
+        }
+    }
+
+    /**
+     * 停止刷脏线程，剩余的脏页由缓存关闭时写回
+     */
+    void close() {
+        closed = true;
+        lock.lock();
+        try {
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package top.lifeifan.db.backend.dm.pageCache;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台预读线程
+ *
+ * 连续访问的页号依次递增达到 SEQ_THRESHOLD 次后，认为是顺序扫描，提前异步加载后面 window 页，
+ * 扫描推进到已预读区间的后半段时再预读下一批。扫描也可以通过 hint 直接指定将要访问的页面。
+ * 预读请求以页号区间为单位排队，预读线程每批只被唤醒一次。
+ * 预读只是尽力而为：待预读的页数有上限，超出的部分直接丢弃，缓存已满且都被引用时放弃加载。
+ * 预读线程需要和扫描线程并行才有收益，单核机器上默认关闭，文件的顺序读取交给操作系统预读。
+ * @author lifeifan
+ * @since 2023-03-25
+ */
+class PagePrefetcher {
+
+    // 连续递增访问达到该次数后开始预读
+    static final int SEQ_THRESHOLD = 4;
+    // 默认每次预读的页数
+    static final int DEFAULT_WINDOW = 16;
+
+    // 关闭时放入队列，唤醒预读线程
+    private static final int[] STOP = new int[0];
+
+    private final PageCacheImpl pageCache;
+    // 每次预读的页数，为 0 时不预读
+    private final int window;
+    // 待预读的区间，{起始页号, 页数}
+    private final BlockingQueue<int[]> queue;
+    private final int maxPending;
+    // 已提交但还未预读的页数
+    private final AtomicInteger pending;
+
+    // 上一次访问的页号
+    private final AtomicInteger lastPageNo;
+    // 连续递增访问的次数
+    private final AtomicInteger seqRun;
+    // 已提交预读的最大页号
+    private final AtomicInteger readAheadMark;
+    // 实际预读进缓存的页数
+    private final AtomicLong prefetched;
+
+    private volatile boolean closed;
+    private final Thread thread;
+
+    /**
+     * @param window 每次预读的页数，为 0 时不启动预读线程
+     * @param maxPending 最多等待预读的页数，应小于页框数，避免预读的页面在被使用前就被淘汰
+     */
+    PagePrefetcher(PageCacheImpl pageCache, int window, int maxPending) {
+        this.pageCache = pageCache;
+        this.window = window;
+        this.queue = new LinkedBlockingQueue<>();
+        this.maxPending = Math.max(1, maxPending);
+        this.pending = new AtomicInteger(0);
+        this.lastPageNo = new AtomicInteger(0);
+        this.seqRun = new AtomicInteger(0);
+        this.readAheadMark = new AtomicInteger(0);
+        this.prefetched = new AtomicLong(0);
+        if (window <= 0) {
+            this.closed = true;
+            this.thread = null;
+            return;
+        }
+        this.thread = new Thread(this::run, "page-prefetcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return 当前机器上默认的预读页数
+     */
+    static int defaultWindow() {
+        return Runtime.getRuntime().availableProcessors() > 1 ? DEFAULT_WINDOW : 0;
+    }
+
+    /**
+     * 记录一次页面访问，检测到顺序扫描时触发预读
+     * 多个线程同时访问时检测结果是近似的，只影响预读的时机
+     */
+    void onAccess(int pageNo) {
+        if (closed) {
+            return;
+        }
+        int last = lastPageNo.getAndSet(pageNo);
+        if (pageNo == last) {
+            return;
+        }
+        if (pageNo != last + 1) {
+            seqRun.set(0);
+            return;
+        }
+        int run = seqRun.incrementAndGet();
+        if (run < SEQ_THRESHOLD) {
+            return;
+        }
+        if (run == SEQ_THRESHOLD) {
+            // 新的一轮顺序扫描，之前的预读区间作废
+            readAheadMark.set(pageNo);
+        }
+        int mark = readAheadMark.get();
+        if (pageNo + window / 2 < mark) {
+            // 已预读的页面还够用
+            return;
+        }
+        int from = Math.max(mark, pageNo) + 1;
+        int to = pageNo + window;
+        if (readAheadMark.compareAndSet(mark, to)) {
+            hint(from, to - from + 1);
+        }
+    }
+
+    /**
+     * 请求预读从 pageNo 开始的 count 页
+     */
+    void hint(int pageNo, int count) {
+        if (closed || count <= 0) {
+            return;
+        }
+        int accepted;
+        while (true) {
+            int p = pending.get();
+            accepted = Math.min(count, maxPending - p);
+            if (accepted <= 0) {
+                return;
+            }
+            if (pending.compareAndSet(p, p + accepted)) {
+                break;
+            }
+        }
+        queue.offer(new int[]{pageNo, accepted});
+    }
+
+    long prefetched() {
+        return prefetched.get();
+    }
+
+    private void run() {
+        while (!closed) {
+            int[] range;
+            try {
+                range = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (range == STOP) {
+                return;
+            }
+            int end = Math.min(range[0] + range[1], pageCache.getPageNumber() + 1);
+            for (int pageNo = range[0]; pageNo < end && !closed; pageNo++) {
+                if (pageCache.prefetchPage(pageNo)) {
+                    prefetched.incrementAndGet();
+                }
+            }
+            pending.addAndGet(-range[1]);
+        }
+    }
+
+    /**
+     * 停止预读线程，不能中断线程，以免中断 FileChannel 上的读取导致文件被关闭
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        queue.offer(STOP);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
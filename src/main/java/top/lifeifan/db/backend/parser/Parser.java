@@ -82,6 +82,15 @@ public class Parser {
         if ("".equals(tmp)) {
             return new Show();
         }
+        if ("stats".equals(tmp)) {
+            tokenizer.pop();
+            if (!"".equals(tokenizer.peek())) {
+                throw OperationFailException.InvalidCommandException;
+            }
+            Show show = new Show();
+            show.stats = true;
+            return show;
+        }
         throw OperationFailException.InvalidCommandException;
     }
 
@@ -1,4 +1,6 @@
 package top.lifeifan.db.backend.parser.statement;
 
 public class Show {
+    // show stats：查看缓存统计
+    public boolean stats;
 }
@@ -46,6 +46,9 @@ public class Executor {
             byte[] res = tbm.abort(xid);
             xid = 0;
             return res;
+        } else if (Show.class.isInstance(stat) && ((Show) stat).stats) {
+            // 缓存统计与事务无关
+            return tbm.stats();
         } else {
             return execute2(stat);
         }
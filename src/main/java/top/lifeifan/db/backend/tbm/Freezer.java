@@ -0,0 +1,91 @@
+package top.lifeifan.db.backend.tbm;
+
+import top.lifeifan.db.backend.utils.Panic;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台冻结线程
+ *
+ * 每隔 interval 毫秒检查一次，冻结界限比上一次冻结前进了 xids 个事务以上时，
+ * 把所有表中早于界限的事务写入的 XMIN/XMAX 冻结，再删除界限之前的事务状态段，
+ * 事务状态占用的空间不再随事务数增长，旧记录判断可见性时也不再查询事务状态。
+ * 默认值取一个事务状态段的事务数，更少时删除不了任何段。
+ * @author lifeifan
+ * @since 2023-04-16
+ */
+class Freezer {
+
+    // 默认每分钟检查一次
+    static final long DEFAULT_INTERVAL = 60_000;
+    // 默认每 1M 个事务冻结一次
+    static final long DEFAULT_XIDS = 1 << 20;
+
+    private final TableManagerImpl tbm;
+    private final long interval;
+    private final long xids;
+    private long lastHorizon;
+
+    private final Lock lock;
+    private final Condition wakeup;
+    private volatile boolean closed;
+    private final Thread thread;
+
+    Freezer(TableManagerImpl tbm, long interval, long xids) {
+        this.tbm = tbm;
+        this.interval = interval;
+        this.xids = xids;
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+        this.thread = new Thread(this::run, "freezer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void run() {
+        while (!closed) {
+            lock.lock();
+            try {
+                if (!closed) {
+                    wakeup.await(interval, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (closed) {
+                return;
+            }
+            if (tbm.vm.freezeHorizon() - lastHorizon < xids) {
+                continue;
+            }
+            try {
+                lastHorizon = tbm.freeze();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /**
+     * 停止冻结线程，等待正在进行的冻结完成
+     */
+    void close() {
+        closed = true;
+        lock.lock();
+        try {
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import top.lifeifan.db.backend.tm.TransactionManagerImpl;
 import top.lifeifan.db.backend.utils.Panic;
 import top.lifeifan.db.backend.utils.ParseStringRes;
 import top.lifeifan.db.backend.utils.Parser;
+import top.lifeifan.db.backend.vm.VersionManager;
 import top.lifeifan.db.common.OperationFailException;
 
 import java.util.*;
@@ -78,6 +79,7 @@ public class Table {
         while (position < raw.length) {
             long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
             fields.add(Field.loadField(this, uid));
+            position += 8;
         }
         return this;
     }
@@ -209,6 +211,36 @@ public class Table {
         return entry;
     }
 
+    /**
+     * 冻结表结构和所有记录，见 VersionManager.freeze
+     * 每条记录都在所有索引中，从第一个有索引的列取出全部记录
+     * @return 修改的记录数
+     */
+    int freeze(long horizon) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        int count = vm.freeze(uid, horizon) ? 1 : 0;
+        Field fd = null;
+        for (Field field : fields) {
+            if (vm.freeze(field.uid, horizon)) {
+                count++;
+            }
+            if (fd == null && field.isIndexed()) {
+                fd = field;
+            }
+        }
+        if (fd == null) {
+            return count;
+        }
+        List<Long> uids = fd.search(Long.MIN_VALUE, Long.MAX_VALUE);
+        ((TableManagerImpl)tbm).dm.prefetch(uids);
+        for (Long uid : uids) {
+            if (vm.freeze(uid, horizon)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private List<Long> parseWhere(Where where) throws Exception {
         long l0 = 0, r0 = 0, l1 = 0, r1 = 0;
         boolean single = false;
@@ -251,6 +283,8 @@ public class Table {
             List<Long> tmp = fd.search(l1, r1);
             uids.addAll(tmp);
         }
+        // 随后会逐个读取这些记录，提前加载它们所在的页面
+        ((TableManagerImpl)tbm).dm.prefetch(uids);
         return uids;
     }
 
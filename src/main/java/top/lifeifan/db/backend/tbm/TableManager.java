@@ -13,11 +13,20 @@ import top.lifeifan.db.backend.vm.VersionManager;
  */
 public interface TableManager {
 
+    // 启动参数，冻结线程的检查间隔（毫秒）
+    String FREEZE_INTERVAL_OPTION = "db.freeze.interval";
+    // 启动参数，冻结界限前进多少个事务后做一次冻结
+    String FREEZE_XIDS_OPTION = "db.freeze.xids";
+
     BeginRes begin(Begin begin);
     byte[] commit(long xid) throws Exception;
     byte[] abort(long xid);
 
     byte[] show(long xid);
+    /**
+     * @return 各个缓存的命中统计
+     */
+    byte[] stats();
     byte[] create(long xid, Create create) throws Exception;
 
     byte[] insert(long xid, Insert insert) throws Exception;
@@ -25,6 +34,11 @@ public interface TableManager {
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    /**
+     * 停止后台冻结线程，需要在关闭 TM 和 DM 之前调用
+     */
+    void close();
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0L));
@@ -1,5 +1,6 @@
 package top.lifeifan.db.backend.tbm;
 
+import top.lifeifan.db.backend.common.CacheMonitor;
 import top.lifeifan.db.backend.dm.DataManager;
 import top.lifeifan.db.backend.parser.statement.*;
 import top.lifeifan.db.backend.utils.Parser;
@@ -25,6 +26,7 @@ public class TableManagerImpl implements TableManager{
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
     private Lock lock;
+    private Freezer freezer;
 
     public TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -34,6 +36,9 @@ public class TableManagerImpl implements TableManager{
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
         loadTables();
+        this.freezer = new Freezer(this,
+                Long.getLong(FREEZE_INTERVAL_OPTION, Freezer.DEFAULT_INTERVAL),
+                Long.getLong(FREEZE_XIDS_OPTION, Freezer.DEFAULT_XIDS));
     }
 
     private void loadTables() {
@@ -92,6 +97,11 @@ public class TableManagerImpl implements TableManager{
         }
     }
 
+    @Override
+    public byte[] stats() {
+        return CacheMonitor.report().getBytes();
+    }
+
     @Override
     public byte[] create(long xid, Create create) throws Exception {
         lock.lock();
@@ -163,4 +173,29 @@ public class TableManagerImpl implements TableManager{
         int count = table.delete(xid, delete);
         return ("delete " + count).getBytes();
     }
+
+    /**
+     * 冻结所有表的记录，之后删除冻结界限之前的事务状态
+     * @return 冻结界限
+     */
+    public long freeze() throws Exception {
+        long horizon = vm.freezeHorizon();
+        List<Table> tables;
+        lock.lock();
+        try {
+            tables = new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+        for (Table tb : tables) {
+            tb.freeze(horizon);
+        }
+        vm.purge(horizon);
+        return horizon;
+    }
+
+    @Override
+    public void close() {
+        freezer.close();
+    }
 }
@@ -0,0 +1,160 @@
+package top.lifeifan.db.backend.tm;
+
+import top.lifeifan.db.backend.common.AbstractCache;
+import top.lifeifan.db.backend.common.TwoQueuePolicy;
+import top.lifeifan.db.backend.utils.Panic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 事务状态段的缓存
+ *
+ * 事务状态按 XID 顺序分成固定大小的段，每段一个文件，文件名为 path_段号.xid，
+ * 每个事务占 2 位，一个字节从低位到高位依次存 4 个事务的状态。
+ * 段文件创建时就扩展到完整大小，没有写过的状态读出来是 0（ACTIVE）。
+ * 缓存以段号为 key，保存段文件的全部内容和打开的文件，按 2Q 策略淘汰不常用的段，
+ * 修改状态由 TransactionManagerImpl 直接写文件，落盘后再修改缓存中的内容，淘汰时不需要写回。
+ * @author lifeifan
+ * @since 2023-04-15
+ */
+class StatusCache extends AbstractCache<StatusCache.Segment> {
+
+    // 默认每段 1M 个事务，段文件 256KB
+    static final int DEFAULT_SEGMENT_XIDS = 1 << 20;
+    // 默认最多缓存 16 段
+    static final int DEFAULT_CACHE_SEGMENTS = 16;
+
+    /**
+     * 一个段的内容
+     */
+    static class Segment {
+        final int no;
+        final FileChannel fc;
+        // 只由组提交中正在写入的线程修改，修改后调用 publish；
+        // 其他线程通过 get 读取，get 先经过 acquire 再读 bits，由 volatile 的写和读保证看到 publish 之前的修改
+        final byte[] bits;
+        private volatile int version;
+
+        Segment(int no, FileChannel fc, byte[] bits) {
+            this.no = no;
+            this.fc = fc;
+            this.bits = bits;
+        }
+
+        byte get(int pos) {
+            acquire();
+            return bits[pos];
+        }
+
+        /**
+         * 只作为内存屏障使用：volatile 读 version，与 publish 中的 volatile 写配对，
+         * 之后读到的 bits 包含最近一次 publish 之前的所有修改，读到的值本身不需要
+         */
+        private void acquire() {
+            int ignored = version;
+        }
+
+        /**
+         * 发布之前对 bits 的修改，同一时刻只有一个线程调用
+         */
+        void publish() {
+            version++;
+        }
+    }
+
+    private final String path;
+
+    StatusCache(String path, int maxSegments) {
+        super(maxSegments, new TwoQueuePolicy(maxSegments));
+        this.path = path;
+    }
+
+    static File segmentFile(String path, int no) {
+        return new File(String.format("%s_%08d%s", path, no, TransactionManager.XID_SUFFIX));
+    }
+
+    /**
+     * @return path 已有的所有段号，从小到大排列
+     */
+    static List<Integer> listSegments(String path) {
+        File base = new File(path).getAbsoluteFile();
+        Pattern pattern = Pattern.compile(Pattern.quote(base.getName()) + "_(\\d{8})"
+                + Pattern.quote(TransactionManager.XID_SUFFIX));
+        List<Integer> res = new ArrayList<>();
+        String[] names = base.getParentFile().list();
+        if (names != null) {
+            for (String name : names) {
+                Matcher m = pattern.matcher(name);
+                if (m.matches()) {
+                    res.add(Integer.parseInt(m.group(1)));
+                }
+            }
+        }
+        res.sort(null);
+        return res;
+    }
+
+    /**
+     * 创建一个 length 字节、内容全为 0 的段文件，文件已存在时覆盖，并将文件和目录项落盘
+     */
+    static void createSegment(String path, int no, int length) {
+        File f = segmentFile(path, no);
+        try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // 末尾写一个 0，中间没有写过的部分读出来也是 0
+            fc.write(ByteBuffer.wrap(new byte[1]), length - 1);
+            fc.force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try (FileChannel dir = FileChannel.open(f.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // 部分平台不支持对目录 fsync
+        }
+    }
+
+    /**
+     * 移出一个段并关闭段文件，段正在被读取时等待读取完成，用于删除段文件之前
+     */
+    void drop(int no) {
+        while (!discard(no)) {
+            Thread.yield();
+        }
+    }
+
+    @Override
+    protected Segment getForCache(long key) throws Exception {
+        FileChannel fc = FileChannel.open(segmentFile(path, (int) key).toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer buf = ByteBuffer.allocate((int) fc.size());
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, buf.position()) < 0) {
+                break;
+            }
+        }
+        return new Segment((int) key, fc, buf.array());
+    }
+
+    @Override
+    protected void releaseForCache(Segment seg) {
+        try {
+            seg.fc.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    protected void close() {
+        super.close();
+    }
+}
@@ -22,6 +22,11 @@ public interface TransactionManager {
     // XID 文件后缀
     String XID_SUFFIX = ".xid";
 
+    // 启动参数，新建状态段文件时每段的事务数，需要是 4 的倍数
+    String SEGMENT_XIDS_OPTION = "db.xid.segment.xids";
+    // 启动参数，内存中最多缓存的状态段数
+    String CACHE_SEGMENTS_OPTION = "db.xid.cache.segments";
+
     /**
      * 开启新事务
      * @return void
@@ -62,6 +67,12 @@ public interface TransactionManager {
 
     boolean isCommitted(long xid);
 
+    /**
+     * 删除 xid 所在段之前的事务状态，之后这些事务都视为已提交
+     * @param xid 事务标识id
+     */
+    void purge(long xid);
+
     /**
      * 关闭事务管理器TM
      */
@@ -95,7 +106,9 @@ public interface TransactionManager {
         } catch (IOException e) {
             Panic.panic(e);
         }
-        return new TransactionManagerImpl(randomAccessFile, fileChannel);
+        return new TransactionManagerImpl(path, randomAccessFile, fileChannel,
+                Integer.getInteger(SEGMENT_XIDS_OPTION, StatusCache.DEFAULT_SEGMENT_XIDS),
+                Integer.getInteger(CACHE_SEGMENTS_OPTION, StatusCache.DEFAULT_CACHE_SEGMENTS));
     }
 
     static TransactionManagerImpl open(String path) {
@@ -114,6 +127,8 @@ public interface TransactionManager {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new TransactionManagerImpl(randomAccessFile, fileChannel);
+        return new TransactionManagerImpl(path, randomAccessFile, fileChannel,
+                Integer.getInteger(SEGMENT_XIDS_OPTION, StatusCache.DEFAULT_SEGMENT_XIDS),
+                Integer.getInteger(CACHE_SEGMENTS_OPTION, StatusCache.DEFAULT_CACHE_SEGMENTS));
     }
 }
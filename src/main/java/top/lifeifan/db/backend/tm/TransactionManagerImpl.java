@@ -3,74 +3,233 @@ package top.lifeifan.db.backend.tm;
 import top.lifeifan.db.backend.utils.Panic;
 import top.lifeifan.db.backend.utils.Parser;
 import top.lifeifan.db.common.Error;
+import top.lifeifan.db.common.OperationFailException;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * 事务管理
+ *
+ * XID 文件 path.xid 只有文件头：
+ * [XidCounter 8B]
+ * XidCounter 是已经预留的最大 XID。
+ * 事务状态保存在段文件 path_段号.xid 中，每个事务 2 位，格式见 StatusCache，
+ * 段大小（每段的事务数）由第一个段文件的长度确定。
+ * 开启事务只在内存中分配 XID，用完预留的 XID 时才一次预留 XID_BLOCK 个并落盘，
+ * 预留时先创建覆盖新 XID 的段文件，再更新 XidCounter，段文件创建时就用 0（ACTIVE）填满，
+ * 事务开始时的 ACTIVE 状态不写文件。崩溃后从 XidCounter 之后继续分配，没有用到的 XID 被跳过；
+ * 崩溃时处于 ACTIVE 的事务在恢复时回滚并记为 ABORTED，没有写过数据的事务不会被任何记录引用。
+ * 查询状态时从 StatusCache 中读取所在的段，只缓存常用的段，缓存满时直接读段文件；
+ * 最新预留的 XID 所在的段一直被引用，查询最近的事务时不经过缓存。
+ * 修改状态时先写段文件并落盘，再更新缓存中的段。
+ * 通过 purge 删除的段中的事务都视为已提交。
+ * 打开每个事务占 1 字节的旧格式 XID 文件时，先把状态转换到段文件中，再去掉文件头之后的内容。
+ *
+ * 提交和回滚采用组提交：并发修改状态的线程把修改放进同一个批次，
+ * 由其中一个线程写入整批状态后 fsync 一次，每个线程等到自己所在的批次落盘后返回。
  * @author lifeifan
  * @since 2023-02-03
  */
 public class TransactionManagerImpl implements TransactionManager{
 
-    // 每个事务的占用长度
-    private static final Integer XID_FIELD_SIZE = 1;
+    // 每个事务占用的位数
+    private static final int XID_BITS = 2;
+    private static final int XIDS_PER_BYTE = 8 / XID_BITS;
+    private static final int STATE_MASK = (1 << XID_BITS) - 1;
+    // 每次预留的 XID 个数
+    static final int XID_BLOCK = 1024;
 
     // 事务的三种状态
-    private static final Byte STATE_TRANSACTION_ACTIVE = 0;
-    private static final Byte STATE_TRANSACTION_COMMITED = 1;
-    private static final Byte STATE_TRANSACTION_ABORTED = 2;
+    private static final byte STATE_TRANSACTION_ACTIVE = 0;
+    private static final byte STATE_TRANSACTION_COMMITED = 1;
+    private static final byte STATE_TRANSACTION_ABORTED = 2;
 
     // 超级事务XID
     public static final Long SUPER_XID = 0L;
 
+    private final String path;
     private RandomAccessFile file;
     private FileChannel fileChannel;
-    private Long xidCounter;
+    // 每段的事务数
+    private int segmentXids;
+    // 最早保留的段号，之前的段已被删除
+    private volatile int firstSegNo;
+    private final StatusCache cache;
+    // 最新预留的 XID 所在的段，一直被引用，不会被淘汰
+    // 段内容的可见性由 Segment.publish/get 保证，见 StatusCache.Segment
+    private volatile StatusCache.Segment hot;
+    // 最近分配的 XID，只在内存中
+    private long xidCounter;
+    // 文件头中记录的已预留的最大 XID
+    private volatile long reserved;
     private Lock counterLock;
 
-    TransactionManagerImpl (RandomAccessFile file, FileChannel fileChannel) {
+    /**
+     * 一批一起落盘的状态修改
+     */
+    private static class Batch {
+        final List<Long> xids = new ArrayList<>();
+        final List<Byte> statuses = new ArrayList<>();
+        boolean durable;
+    }
+
+    private Lock statusLock;
+    // 正在收集的批次
+    private Batch current;
+    // 是否有线程正在写入一个批次
+    private boolean flushing;
+    // 有批次落盘后唤醒等待的线程
+    private Condition flushed;
+
+    /**
+     * @param segmentXids 新建段文件时每段的事务数，已有段文件时以段文件的长度为准
+     * @param cacheSegments 最多缓存的段数
+     */
+    TransactionManagerImpl (String path, RandomAccessFile file, FileChannel fileChannel, int segmentXids, int cacheSegments) {
+        this.path = path;
         this.file = file;
         this.fileChannel = fileChannel;
+        this.segmentXids = segmentXids;
         this.counterLock = new ReentrantLock();
+        this.statusLock = new ReentrantLock();
+        this.flushed = statusLock.newCondition();
+        if (segmentXids <= 0 || segmentXids % XIDS_PER_BYTE != 0) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        this.cache = new StatusCache(path, cacheSegments);
         checkXIDCounter();
+        if (fileLength() > XID_HEADER_LENGTH) {
+            migrate();
+        }
+        checkSegments();
+        this.xidCounter = this.reserved;
+        if (reserved > 0) {
+            hot = getSegment(segmentNo(reserved));
+        }
     }
 
     /**
-     * 检查 XID 文件是否合法
-     * 读取 XID_FILE_HEADER 中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 检查 XID 文件是否合法，并读取 XID_FILE_HEADER 中的xidcounter
      */
     private void checkXIDCounter() {
-        Long fileLen = 0L;
+        if (fileLength() < XID_HEADER_LENGTH) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(XID_HEADER_LENGTH);
         try {
-            fileLen = file.length();
+            while (buf.hasRemaining()) {
+                fileChannel.read(buf, buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        this.reserved = Parser.parseLong(buf.array());
+    }
+
+    private long fileLength() {
+        try {
+            return file.length();
         } catch (IOException e) {
             Panic.panic(Error.BadXIDFileException);
+            return 0;
+        }
+    }
+
+    /**
+     * 检查段文件：段号连续，长度相同，并且覆盖到已预留的最大 XID
+     * 还没有预留过 XID 时，已有的段文件是预留到一半时留下的，直接删除
+     */
+    private void checkSegments() {
+        List<Integer> nos = StatusCache.listSegments(path);
+        if (reserved == 0) {
+            for (int no : nos) {
+                deleteSegment(no);
+            }
+            firstSegNo = 0;
+            return;
         }
-        if (fileLen < XID_HEADER_LENGTH) {
+        if (nos.isEmpty()) {
             Panic.panic(Error.BadXIDFileException);
         }
+        long length = StatusCache.segmentFile(path, nos.get(0)).length();
+        if (length <= 0 || length * XIDS_PER_BYTE > Integer.MAX_VALUE) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        segmentXids = (int) length * XIDS_PER_BYTE;
+        firstSegNo = nos.get(0);
+        // 预留时可能已经创建了之后的段，但不会缺少之前的段
+        if (nos.get(nos.size() - 1) - firstSegNo + 1 != nos.size() || segmentNo(reserved) > nos.get(nos.size() - 1)) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        for (int no : nos) {
+            if (StatusCache.segmentFile(path, no).length() != length) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+        }
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(XID_HEADER_LENGTH);
+    /**
+     * 把每个事务占 1 字节的旧格式状态写入段文件，再截掉 XID 文件头之后的内容
+     * 中途崩溃时下次打开会重新转换
+     */
+    private void migrate() {
+        if (fileLength() < XID_HEADER_LENGTH + reserved) {
+            Panic.panic(Error.BadXIDFileException);
+        }
         try {
-            fileChannel.position(0);
-            fileChannel.read(buf);
+            for (int no = 0; no <= segmentNo(reserved); no++) {
+                byte[] bits = new byte[segmentXids / XIDS_PER_BYTE];
+                long first = Math.max(1, (long) no * segmentXids);
+                long last = Math.min(reserved, (long) (no + 1) * segmentXids - 1);
+                ByteBuffer buf = ByteBuffer.allocate((int) (last - first + 1));
+                while (buf.hasRemaining()) {
+                    fileChannel.read(buf, XID_HEADER_LENGTH + first - 1 + buf.position());
+                }
+                for (long xid = first; xid <= last; xid++) {
+                    setState(bits, xid, buf.get((int) (xid - first)));
+                }
+                StatusCache.createSegment(path, no, bits.length);
+                try (RandomAccessFile seg = new RandomAccessFile(StatusCache.segmentFile(path, no), "rw")) {
+                    seg.write(bits);
+                    seg.getFD().sync();
+                }
+            }
+            fileChannel.truncate(XID_HEADER_LENGTH);
+            fileChannel.force(true);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
-        Long end = getXidPosition(this.xidCounter + 1);
-        if (!end.equals(fileLen)) {
-            Panic.panic(Error.BadXIDFileException);
-        }
     }
 
-    private Long getXidPosition(long xid) {
-        return XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+    private int segmentNo(long xid) {
+        return (int) (xid / segmentXids);
+    }
+
+    /**
+     * @return xid 的状态在所在段中的字节偏移
+     */
+    private int byteOffset(long xid) {
+        return (int) (xid % segmentXids) / XIDS_PER_BYTE;
+    }
+
+    private static int shift(long xid) {
+        return (int) (xid % XIDS_PER_BYTE) * XID_BITS;
+    }
+
+    private void setState(byte[] bits, long xid, byte status) {
+        int pos = byteOffset(xid);
+        bits[pos] = (byte) (bits[pos] & ~(STATE_MASK << shift(xid)) | status << shift(xid));
     }
 
     @Override
@@ -78,8 +237,10 @@ public class TransactionManagerImpl implements TransactionManager{
         counterLock.lock();
         try {
             long xid = xidCounter + 1;
-            updateXID(xid, STATE_TRANSACTION_ACTIVE);
-            incrXIDCounter();
+            if (xid > reserved) {
+                reserveXID();
+            }
+            xidCounter = xid;
             return xid;
         } finally {
             counterLock.unlock();
@@ -87,44 +248,183 @@ public class TransactionManagerImpl implements TransactionManager{
     }
 
     /**
-     * 将XID加一，并更新XID Header
+     * 再预留 XID_BLOCK 个 XID：先创建新 XID 所在的段文件并落盘，再更新 XID Header 并落盘
+     * 所在段已经存在时只需要写 XID Header
      */
-    private void incrXIDCounter() {
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
-        try {
-            fileChannel.position(0);
-            fileChannel.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+    private void reserveXID() {
+        long next = reserved + XID_BLOCK;
+        // 已预留的 XID 所在的段一定存在，之后的段即使存在也是上次预留到一半时留下的
+        int from = reserved == 0 ? 0 : segmentNo(reserved) + 1;
+        for (int no = from; no <= segmentNo(next); no++) {
+            StatusCache.createSegment(path, no, segmentXids / XIDS_PER_BYTE);
         }
         try {
+            ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(next));
+            while (buf.hasRemaining()) {
+                fileChannel.write(buf, buf.position());
+            }
             fileChannel.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        reserved = next;
+        StatusCache.Segment old = hot;
+        if (old == null || old.no != segmentNo(next)) {
+            hot = getSegment(segmentNo(next));
+            if (old != null) {
+                cache.release(old.no);
+            }
+        }
     }
 
     /**
-     * 更新xid文件中某事务(xid标识)的状态
+     * 更新xid文件中某事务(xid标识)的状态，返回时已经落盘并更新了缓存
      * @param xid 事务标识
      * @param status 事务状态
      */
-    private void updateXID(Long xid, Byte status) {
-        Long offset = getXidPosition(xid);
-        byte[] temp = new byte[XID_FIELD_SIZE];
-        temp[0] = status;
-        ByteBuffer buf = ByteBuffer.wrap(temp);
+    private void updateXID(Long xid, byte status) {
+        statusLock.lock();
         try {
-            fileChannel.position(offset);
-            fileChannel.write(buf);
+            if (current == null) {
+                current = new Batch();
+            }
+            Batch batch = current;
+            batch.xids.add(xid);
+            batch.statuses.add(status);
+            while (!batch.durable) {
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+                // 没有线程在写入时，自己所在的批次一定还在收集中，由自己负责写入
+                Batch toFlush = current;
+                current = null;
+                flushing = true;
+                statusLock.unlock();
+                try {
+                    flush(toFlush);
+                } finally {
+                    statusLock.lock();
+                }
+                toFlush.durable = true;
+                flushing = false;
+                flushed.signalAll();
+            }
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    /**
+     * 写入一批状态，每个涉及的段 fsync 一次，再更新缓存中的段
+     * 同一时刻只有一个线程在执行，缓存中的段只由这里修改
+     */
+    private void flush(Batch batch) {
+        Map<Integer, StatusCache.Segment> segments = new HashMap<>();
+        // 修改后的字节，key 为 xid / XIDS_PER_BYTE，同一字节中的多个事务依次修改
+        Map<Long, Byte> pending = new HashMap<>();
+        try {
+            for (int i = 0; i < batch.xids.size(); i++) {
+                long xid = batch.xids.get(i);
+                int no = segmentNo(xid);
+                StatusCache.Segment seg = segments.get(no);
+                if (seg == null) {
+                    seg = getSegment(no);
+                    segments.put(no, seg);
+                }
+                int pos = byteOffset(xid);
+                long key = xid / XIDS_PER_BYTE;
+                byte b = pending.containsKey(key) ? pending.get(key) : seg.get(pos);
+                b = (byte) (b & ~(STATE_MASK << shift(xid)) | batch.statuses.get(i) << shift(xid));
+                pending.put(key, b);
+                ByteBuffer buf = ByteBuffer.wrap(new byte[]{b});
+                while (buf.hasRemaining()) {
+                    seg.fc.write(buf, pos);
+                }
+            }
+            for (StatusCache.Segment seg : segments.values()) {
+                seg.fc.force(false);
+            }
+            for (Map.Entry<Long, Byte> entry : pending.entrySet()) {
+                long xid = entry.getKey() * XIDS_PER_BYTE;
+                segments.get(segmentNo(xid)).bits[byteOffset(xid)] = entry.getValue();
+            }
+            for (StatusCache.Segment seg : segments.values()) {
+                seg.publish();
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            for (int no : segments.keySet()) {
+                cache.release(no);
+            }
         }
+    }
+
+    private StatusCache.Segment getSegment(int no) {
         try {
-            fileChannel.force(false);
+            return cache.get(no);
+        } catch (Exception e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    /**
+     * @return xid 的状态，已删除的段中的事务视为已提交
+     */
+    private byte getState(long xid) {
+        // 还没有预留的事务和段文件中一样视为 0，包括 vm 中表示记录已失效的 Long.MAX_VALUE
+        if (xid > reserved) {
+            return STATE_TRANSACTION_ACTIVE;
+        }
+        int no = segmentNo(xid);
+        if (no < firstSegNo) {
+            return STATE_TRANSACTION_COMMITED;
+        }
+        StatusCache.Segment seg = hot;
+        if (seg != null && seg.no == no) {
+            return state(seg.get(byteOffset(xid)), xid);
+        }
+        try {
+            seg = cache.get(no);
+        } catch (Exception e) {
+            if (e == OperationFailException.CacheFullException) {
+                // 缓存中的段都在被引用
+                return readState(xid);
+            }
+            // 读取时所在的段恰好被删除
+            if (no < firstSegNo) {
+                return STATE_TRANSACTION_COMMITED;
+            }
+            Panic.panic(e);
+            return 0;
+        }
+        try {
+            return state(seg.get(byteOffset(xid)), xid);
+        } finally {
+            cache.release(no);
+        }
+    }
+
+    private static byte state(byte b, long xid) {
+        return (byte) (b >> shift(xid) & STATE_MASK);
+    }
+
+    /**
+     * 不经过缓存，直接从段文件中读取 xid 的状态
+     */
+    private byte readState(long xid) {
+        int no = segmentNo(xid);
+        try (RandomAccessFile raf = new RandomAccessFile(StatusCache.segmentFile(path, no), "r")) {
+            raf.seek(byteOffset(xid));
+            return state(raf.readByte(), xid);
         } catch (IOException e) {
+            if (no < firstSegNo) {
+                return STATE_TRANSACTION_COMMITED;
+            }
             Panic.panic(e);
+            return 0;
         }
     }
 
@@ -134,16 +434,8 @@ public class TransactionManagerImpl implements TransactionManager{
      * @param status 状态
      * @return tf
      */
-    private boolean checkXID(Long xid, Byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            fileChannel.position(offset);
-            fileChannel.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return buf.array()[0] == status;
+    private boolean checkXID(long xid, byte status) {
+        return getState(xid) == status;
     }
 
     @Override
@@ -168,8 +460,42 @@ public class TransactionManagerImpl implements TransactionManager{
         return checkXID(xid, STATE_TRANSACTION_ABORTED);
     }
 
+    /**
+     * 删除 xid 所在段之前的所有段，之后这些段中的事务都视为已提交
+     * 调用者需要保证这些段中没有活跃的事务，并且数据中已经不再引用其中没有提交的事务
+     */
+    @Override
+    public void purge(long xid) {
+        counterLock.lock();
+        try {
+            int keep = segmentNo(Math.min(xid, reserved));
+            while (firstSegNo < keep) {
+                int no = firstSegNo;
+                // 先移动 firstSegNo，之后的查询不再读取这一段
+                firstSegNo = no + 1;
+                deleteSegment(no);
+            }
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    /**
+     * 先从缓存中移出段并关闭文件再删除段文件
+     * 删除前检查过 firstSegNo 的读线程可能在移出后重新加载该段，删除后再移出一次，之后加载会失败
+     */
+    private void deleteSegment(int no) {
+        cache.drop(no);
+        if (!StatusCache.segmentFile(path, no).delete()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        cache.drop(no);
+    }
+
     @Override
     public void close() {
+        hot = null;
+        cache.close();
         try {
             file.close();
             fileChannel.close();
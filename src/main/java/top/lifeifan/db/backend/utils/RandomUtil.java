@@ -8,6 +8,7 @@ public class RandomUtil {
     public static byte[] randomBytes(int length) {
         Random random = new SecureRandom();
         byte[] buf = new byte[length];
+        random.nextBytes(buf);
         return buf;
     }
 
@@ -3,6 +3,8 @@ package top.lifeifan.db.backend.vm;
 import com.google.common.primitives.Bytes;
 import top.lifeifan.db.backend.common.SubArray;
 import top.lifeifan.db.backend.dm.dataItem.DataItem;
+import top.lifeifan.db.backend.tm.TransactionManager;
+import top.lifeifan.db.backend.tm.TransactionManagerImpl;
 import top.lifeifan.db.backend.utils.Parser;
 
 import java.nio.ByteBuffer;
@@ -14,6 +16,8 @@ import java.util.Arrays;
  *          XMIN：创建该条记录的事务编号
  *          XMAX：删除该条记录的事务编号
  *          DATA：该条记录持有的数据
+ * 冻结后的记录 XMIN 为 SUPER_XID（对所有事务可见）或 DEAD_XID（对所有事务不可见），
+ * 判断可见性时不再需要查询原来的事务状态。XMIN 为 DEAD_XID 时保留原来的 XMAX，不再检查
  */
 public class Entry {
 
@@ -21,6 +25,9 @@ public class Entry {
     private static final Integer OF_XMAX = OF_XMIN + 8;
     private static final Integer OF_DATA = OF_XMAX + 8;
 
+    // 冻结时写入已失效记录的 XMIN，大于所有 XID，在 tm 中一直是 ACTIVE 状态
+    public static final long DEAD_XID = Long.MAX_VALUE;
+
     private long uid;
     private DataItem dataItem;
     private VersionManager vm;
@@ -71,13 +78,7 @@ public class Entry {
     }
 
     public void setXmax(long xid) {
-        dataItem.before();
-        try {
-            SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start + OF_XMAX, 8);
-        } finally {
-            dataItem.after(xid);
-        }
+        dataItem.update(xid, OF_XMAX, Parser.long2Byte(xid));
     }
 
     public long getXmin() {
@@ -100,6 +101,57 @@ public class Entry {
         }
     }
 
+    /**
+     * 冻结记录中早于 horizon 的 XMIN 和 XMAX
+     * horizon 之前的事务都已结束，并且不在任何活跃事务的快照中，这些事务对所有事务的可见性都相同：
+     * 删除者已提交时只把 XMIN 改为 DEAD_XID；删除者已回滚时 XMAX 清零；
+     * 创建者已提交时 XMIN 改为 SUPER_XID，创建者已回滚时改为 DEAD_XID。
+     * 可见性检查分两次读取 XMIN 和 XMAX，已提交的删除不能清零 XMAX，
+     * 否则读到旧的 XMIN 和清零后的 XMAX 时，已删除的记录又会可见。
+     * 修改以 SUPER_XID 写日志，恢复时不会被撤销
+     * @return 是否修改了记录
+     */
+    public boolean freeze(TransactionManager tm, long horizon) {
+        long oldXmin = getXmin();
+        if (oldXmin == DEAD_XID || !needFreeze(oldXmin, horizon) && !needFreeze(getXmax(), horizon)) {
+            return false;
+        }
+        // 持有写锁，防止判断之后其他事务修改 XMAX
+        dataItem.lock();
+        try {
+            long xmin = getXmin();
+            long xmax = getXmax();
+            if (xmin == DEAD_XID) {
+                return false;
+            }
+            long newXmin = xmin;
+            long newXmax = xmax;
+            if (needFreeze(xmax, horizon)) {
+                if (tm.isCommitted(xmax)) {
+                    newXmin = DEAD_XID;
+                } else {
+                    newXmax = 0;
+                }
+            }
+            if (newXmin == xmin && needFreeze(xmin, horizon)) {
+                newXmin = tm.isCommitted(xmin) ? TransactionManagerImpl.SUPER_XID : DEAD_XID;
+            }
+            if (newXmax != xmax) {
+                dataItem.update(TransactionManagerImpl.SUPER_XID, OF_XMAX, Parser.long2Byte(newXmax));
+            }
+            if (newXmin != xmin) {
+                dataItem.update(TransactionManagerImpl.SUPER_XID, OF_XMIN, Parser.long2Byte(newXmin));
+            }
+            return newXmin != xmin || newXmax != xmax;
+        } finally {
+            dataItem.unlock();
+        }
+    }
+
+    private static boolean needFreeze(long xid, long horizon) {
+        return xid != TransactionManagerImpl.SUPER_XID && xid != DEAD_XID && xid < horizon;
+    }
+
     public long getUid() {
         return this.uid;
     }
@@ -18,6 +18,22 @@ public interface VersionManager {
     void commit(long xid) throws Exception;
     void abort(long xid);
 
+    /**
+     * @return 冻结界限，之前的事务都已结束，并且不在任何活跃事务的快照中
+     */
+    long freezeHorizon();
+
+    /**
+     * 冻结 uid 对应的记录中早于 horizon 的事务
+     * @return 是否修改了记录
+     */
+    boolean freeze(long uid, long horizon) throws Exception;
+
+    /**
+     * 所有记录都冻结到 horizon 之后，删除 horizon 之前的事务状态
+     */
+    void purge(long horizon);
+
     static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
     }
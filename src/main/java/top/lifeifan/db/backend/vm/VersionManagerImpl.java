@@ -21,6 +21,8 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     Map<Long, Transaction> activeTransaction;
     Lock lock;
     LockTable lockTable;
+    // 最近开启的事务
+    long lastXid;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
@@ -162,6 +164,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.lock();
         try {
             long xid = tm.begin();
+            lastXid = xid;
             Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
             // 将其放在activeTransaction中，用于检查和快照使用
             activeTransaction.put(xid, t);
@@ -189,12 +192,13 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             log.error("now active transactions are: " + activeTransaction.keySet());
             Panic.panic(n);
         }
-        lock.lock();
-        activeTransaction.remove(xid);
-        lock.unlock();
         // 释放所有与xid有关的锁，从等待图中删除
         lockTable.remove(xid);
         tm.commit(xid);
+        // 状态落盘之后才移出活跃事务，不在活跃事务中的事务都已结束
+        lock.lock();
+        activeTransaction.remove(xid);
+        lock.unlock();
     }
 
     @Override
@@ -210,14 +214,66 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     private void internAbort(long xid, boolean autoAborted) {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+        if (!t.autoAborted) {
+            lockTable.remove(xid);
+            tm.abort(xid);
+        }
         if (!autoAborted) {
+            lock.lock();
             activeTransaction.remove(xid);
+            lock.unlock();
         }
-        lock.unlock();
-        if (t.autoAborted) {
-            return;
+    }
+
+    /**
+     * 冻结界限取最早的活跃事务和活跃事务快照中最早的事务，没有时取下一个事务
+     * 事务在状态落盘之后才移出活跃事务，界限之前的事务状态都已确定
+     */
+    @Override
+    public long freezeHorizon() {
+        lock.lock();
+        try {
+            long horizon = lastXid + 1;
+            for (Transaction t : activeTransaction.values()) {
+                if (t.xid == TransactionManagerImpl.SUPER_XID) {
+                    continue;
+                }
+                horizon = Math.min(horizon, t.xid);
+                if (t.snapshot != null) {
+                    for (long x : t.snapshot.keySet()) {
+                        if (x != TransactionManagerImpl.SUPER_XID) {
+                            horizon = Math.min(horizon, x);
+                        }
+                    }
+                }
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
         }
-        lockTable.remove(xid);
-        tm.abort(xid);
+    }
+
+    @Override
+    public boolean freeze(long uid, long horizon) throws Exception {
+        Entry entry;
+        try {
+            entry = super.get(uid);
+        } catch (Exception e) {
+            if ("Null Entry!".equals(e.getMessage())) {
+                return false;
+            }
+            throw e;
+        }
+        try {
+            return entry.freeze(tm, horizon);
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public void purge(long horizon) {
+        tm.purge(horizon);
     }
 }
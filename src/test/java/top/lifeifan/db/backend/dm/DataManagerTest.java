@@ -3,13 +3,18 @@ package top.lifeifan.db.backend.dm;
 import org.junit.Test;
 import top.lifeifan.db.backend.common.SubArray;
 import top.lifeifan.db.backend.dm.dataItem.DataItem;
+import top.lifeifan.db.backend.dm.logger.Logger;
+import top.lifeifan.db.backend.dm.logger.LoggerImpl;
 import top.lifeifan.db.backend.dm.pageCache.PageCache;
 import top.lifeifan.db.backend.tm.MockTransactionManager;
 import top.lifeifan.db.backend.tm.TransactionManager;
 import top.lifeifan.db.backend.utils.Panic;
+import top.lifeifan.db.backend.utils.Parser;
 import top.lifeifan.db.backend.utils.RandomUtil;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -95,8 +100,9 @@ public class DataManagerTest {
 
     @Test
     public void testDMSingle() throws Exception {
+        String path = "D:\\lifei\\test_data\\TESTDMSingle";
         TransactionManager tm0 = new MockTransactionManager();
-        DataManager dm0 = DataManager.create("D:\\lifei\\test_data\\TESTDMSingle", PageCache.PAGE_SIZE*10, tm0);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
         DataManager mdm = MockDataManager.newMockDataManager();
 
         int tasksNum = 10000;
@@ -107,14 +113,17 @@ public class DataManagerTest {
         cdl.await();
         dm0.close(); mdm.close();
 
-        new File("/tmp/TESTDMSingle.db").delete();
-        new File("/tmp/TESTDMSingle.log").delete();
+        new File(path + ".db").delete();
+        for (File f : logSegments(path)) {
+            f.delete();
+        }
     }
 
     @Test
     public void testDMMulti() throws InterruptedException {
+        String path = "D:\\lifei\\test_data\\TestDMMulti";
         TransactionManager tm0 = new MockTransactionManager();
-        DataManager dm0 = DataManager.create("D:\\lifei\\test_data\\TestDMMulti", PageCache.PAGE_SIZE*10, tm0);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
         DataManager mdm = MockDataManager.newMockDataManager();
 
         int tasksNum = 500;
@@ -127,8 +136,10 @@ public class DataManagerTest {
         cdl.await();
         dm0.close(); mdm.close();
 
-        new File("/tmp/TestDMMulti.db").delete();
-        new File("/tmp/TestDMMulti.log").delete();
+        new File(path + ".db").delete();
+        for (File f : logSegments(path)) {
+            f.delete();
+        }
     }
 
     @Test
@@ -153,8 +164,262 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("D:\\lifei\\test_data\\TestRecoverySimple.db").delete();
-        new File("D:\\lifei\\test_data\\TestRecoverySimple.log").delete();
+        for (File f : logSegments("D:\\lifei\\test_data\\TestRecoverySimple")) {
+            f.delete();
+        }
         new File("D:\\lifei\\test_data\\TestRecoverySimple.xid").delete();
+        new File("D:\\lifei\\test_data\\TestRecoverySimple_00000000.xid").delete();
+
+    }
+
+    @Test
+    public void testRecoverUndo() throws Exception {
+        String path = "D:\\lifei\\test_data\\TestRecoverUndo";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, PageCache.PAGE_SIZE * 30, tm);
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        long xid = tm.begin();
+        for (int i = 0; i < 40; i++) {
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm.commit(xid);
+
+        // 两个事务交替更新：未提交的事务更新偶数项并插入一项，已提交的事务更新奇数项
+        long loser = tm.begin();
+        long winner = tm.begin();
+        long loserUid = 0;
+        for (int i = 0; i < uids.size(); i += 2) {
+            update(dm, loser, uids.get(i), RandomUtil.randomBytes(60));
+            byte[] data = RandomUtil.randomBytes(60);
+            update(dm, winner, uids.get(i + 1), data);
+            datas.set(i + 1, data);
+            if (i == uids.size() / 2) {
+                // 一部分修改已经落盘，重做时应被跳过
+                dm.pageCache.flushAll();
+                loserUid = dm.insert(loser, RandomUtil.randomBytes(60));
+            }
+        }
+        tm.commit(winner);
+
+        dm = (DataManagerImpl) DataManager.open(path, PageCache.PAGE_SIZE * 30, tm);
+        for (int i = 0; i < uids.size(); i++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray s = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            di.release();
+        }
+        assert dm.read(loserUid) == null;
+        assert !tm.isActive(loser);
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".xid").delete();
+        new File(path + "_00000000.xid").delete();
+        for (File f : logSegments(path)) {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testParallelRedo() throws Exception {
+        String path = "D:\\lifei\\test_data\\TestParallelRedo";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, PageCache.PAGE_SIZE * 100, tm);
+        byte[] created = Files.readAllBytes(Paths.get(path + ".db"));
+
+        // 插入和更新分布在几十个页面上，同一数据项的多次更新要按顺序重做
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        long xid = tm.begin();
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < uids.size(); i += 3) {
+                byte[] data = RandomUtil.randomBytes(60);
+                update(dm, xid, uids.get(i), data);
+                datas.set(i, data);
+            }
+        }
+        tm.commit(xid);
+        // 崩溃时写回的页面都丢失，所有日志都要重做
+        Files.write(Paths.get(path + ".db"), created);
+
+        System.setProperty(DataManager.RECOVER_THREADS_OPTION, "4");
+        long start = System.currentTimeMillis();
+        try {
+            dm = (DataManagerImpl) DataManager.open(path, PageCache.PAGE_SIZE * 100, tm);
+        } finally {
+            System.clearProperty(DataManager.RECOVER_THREADS_OPTION);
+        }
+        System.out.println("parallel redo: 4 threads, " + (System.currentTimeMillis() - start) + "ms");
+        for (int i = 0; i < uids.size(); i++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray s = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            di.release();
+        }
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".xid").delete();
+        new File(path + "_00000000.xid").delete();
+        for (File f : logSegments(path)) {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testDeltaUpdateLog() throws Exception {
+        String path = "D:\\lifei\\test_data\\TestDeltaUpdateLog";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, PageCache.PAGE_SIZE * 30, tm);
+
+        long xid = tm.begin();
+        byte[] data = RandomUtil.randomBytes(200);
+        long uid = dm.insert(xid, data);
+        tm.commit(xid);
+
+        // 只修改两处共 10 个字节，日志只记录这两个区间
+        long winner = tm.begin();
+        byte[] updated = data.clone();
+        System.arraycopy(RandomUtil.randomBytes(8), 0, updated, 40, 8);
+        updated[150] = (byte) ~updated[150];
+        long before = dm.logger.nextLsn();
+        update(dm, winner, uid, updated);
+        assert dm.logger.nextLsn() - before < 80;
+        tm.commit(winner);
+
+        long loser = tm.begin();
+        byte[] lost = updated.clone();
+        lost[0] = (byte) ~lost[0];
+        lost[199] = (byte) ~lost[199];
+        update(dm, loser, uid, lost);
+        // 定长字段直接覆盖：[Size][Checksum] + [Type][XID][PrevLSN][UID] + [Offset][Length][Old 8B][New 8B]
+        DataItem di = dm.read(uid);
+        before = dm.logger.nextLsn();
+        di.update(loser, 100, Parser.long2Byte(loser));
+        assert dm.logger.nextLsn() - before == 8 + 25 + 4 + 16;
+        di.release();
+
+        dm = (DataManagerImpl) DataManager.open(path, PageCache.PAGE_SIZE * 30, tm);
+        di = dm.read(uid);
+        SubArray sa = di.data();
+        assert Arrays.equals(updated, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".xid").delete();
+        new File(path + "_00000000.xid").delete();
+        for (File f : logSegments(path)) {
+            f.delete();
+        }
+    }
+
+    private void update(DataManager dm, long xid, long uid, byte[] data) throws Exception {
+        DataItem di = dm.read(uid);
+        SubArray s = di.data();
+        di.before();
+        System.arraycopy(data, 0, s.raw, s.start, data.length);
+        di.after(xid);
+        di.release();
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        String path = "D:\\lifei\\test_data\\TestCheckpoint";
+        System.setProperty(Logger.SEGMENT_SIZE_OPTION, "4096");
+        System.setProperty(DataManager.CHECKPOINT_LOG_SIZE_OPTION, String.valueOf(Long.MAX_VALUE));
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm;
+        try {
+            dm = (DataManagerImpl) DataManager.create(path, PageCache.PAGE_SIZE * 30, tm);
+        } finally {
+            System.clearProperty(Logger.SEGMENT_SIZE_OPTION);
+        }
+
+        // 检查点之前：已提交的插入和一个一直未提交的事务
+        long active = tm.begin();
+        long activeUid = dm.insert(active, RandomUtil.randomBytes(60));
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        long xid = tm.begin();
+        for (int i = 0; i < 200; i++) {
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm.commit(xid);
+        int segments = logSegments(path).size();
+        dm.checkpoint();
+        // 未提交事务的第一条日志所在的段之后的段都要保留
+        assert logSegments(path).size() == segments;
+
+        tm.commit(active);
+        xid = tm.begin();
+        for (int i = 0; i < 200; i++) {
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm.commit(xid);
+        // 脏页写回之后，检查点之前的日志段不再需要
+        dm.pageCache.flushAll();
+        dm.checkpoint();
+        assert logSegments(path).size() <= 2;
+
+        // 模糊检查点：脏页不写回，只从它们最早的修改开始重做
+        xid = tm.begin();
+        for (int i = 0; i < 50; i++) {
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm.commit(xid);
+        dm.checkpoint();
 
+        // 检查点之后：未提交的插入，然后崩溃
+        long crashed = tm.begin();
+        long crashedUid = dm.insert(crashed, RandomUtil.randomBytes(60));
+
+        dm = (DataManagerImpl) DataManager.open(path, PageCache.PAGE_SIZE * 30, tm);
+        System.clearProperty(DataManager.CHECKPOINT_LOG_SIZE_OPTION);
+        for (int i = 0; i < uids.size(); i++) {
+            DataItem di = dm.read(uids.get(i));
+            SubArray s = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            di.release();
+        }
+        DataItem di = dm.read(activeUid);
+        assert di != null;
+        di.release();
+        assert dm.read(crashedUid) == null;
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".xid").delete();
+        new File(path + "_00000000.xid").delete();
+        for (File f : logSegments(path)) {
+            f.delete();
+        }
+    }
+
+    private List<File> logSegments(String path) {
+        List<File> res = new ArrayList<>();
+        for (int no : LoggerImpl.listSegments(path)) {
+            res.add(LoggerImpl.segmentFile(path, no));
+        }
+        return res;
     }
 }
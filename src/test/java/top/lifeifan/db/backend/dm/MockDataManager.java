@@ -5,6 +5,7 @@ import top.lifeifan.db.backend.dm.dataItem.DataItem;
 import top.lifeifan.db.backend.dm.dataItem.MockDataItem;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
@@ -51,6 +52,9 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public void prefetch(List<Long> uids) {}
+
     @Override
     public void close() {}
     
@@ -1,12 +1,16 @@
 package top.lifeifan.db.backend.dm.common;
 
 import org.junit.Test;
+import top.lifeifan.db.backend.common.AbstractCache;
 import top.lifeifan.db.backend.utils.Panic;
 import top.lifeifan.db.common.OperationFailException;
 
 import java.security.SecureRandom;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CacheTest {
 
@@ -45,4 +49,99 @@ public class CacheTest {
         }
         cdl.countDown();
     }
+
+    /**
+     * 多线程争用少量热点 key 的基准：统计吞吐量
+     */
+    @Test
+    public void testCacheContention() throws Exception {
+        int threads = 16, ops = 20000, hotKeys = 32;
+        MockCache contended = new MockCache(hotKeys * 2, 20_000);
+        AtomicInteger errors = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                Random r = new Random();
+                for (int j = 0; j < ops; j++) {
+                    long key = r.nextInt(hotKeys);
+                    try {
+                        long h = contended.get(key);
+                        if (h != key) {
+                            errors.incrementAndGet();
+                        }
+                        contended.release(key);
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        long cost = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("cache contention: " + threads + " threads, " + threads * ops
+                + " ops in " + cost + "ms, " + (threads * ops * 1000L / Math.max(cost, 1)) + " ops/s");
+        assert errors.get() == 0;
+    }
+
+    /**
+     * 写回在 compute 之外进行：写回期间同一个哈希桶中的其他 key 不受影响，
+     * 请求正在写回的 key 的线程等待写回完成后重新加载
+     */
+    @Test
+    public void testSlowRelease() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger(0);
+        AbstractCache<Long> slow = new AbstractCache<Long>(0) {
+            @Override
+            protected Long getForCache(long key) {
+                loads.incrementAndGet();
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {
+                if (obj == 1) {
+                    writing.countDown();
+                    try {
+                        finish.await();
+                    } catch (InterruptedException e) {
+                        Panic.panic(e);
+                    }
+                }
+            }
+        };
+        slow.get(1);
+        Thread releaser = new Thread(() -> slow.release(1));
+        releaser.start();
+        writing.await();
+
+        // 17 和 1 在同一个哈希桶中
+        CompletableFuture<Long> other = CompletableFuture.supplyAsync(() -> {
+            try {
+                long v = slow.get(17);
+                slow.release(17);
+                return v;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assert other.get(5, TimeUnit.SECONDS) == 17;
+
+        CompletableFuture<Long> same = CompletableFuture.supplyAsync(() -> {
+            try {
+                return slow.get(1);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assert !same.isDone();
+        finish.countDown();
+        assert same.get(5, TimeUnit.SECONDS) == 1;
+        releaser.join();
+        assert loads.get() == 3;
+    }
 }
@@ -2,18 +2,31 @@ package top.lifeifan.db.backend.dm.common;
 
 import top.lifeifan.db.backend.common.AbstractCache;
 
+import java.util.concurrent.locks.LockSupport;
+
 public class MockCache extends AbstractCache<Long> {
 
+    // 模拟一次磁盘读取的耗时
+    private final long loadNanos;
+
     public MockCache() {
-        super(50);
+        this(50, 0);
+    }
+
+    public MockCache(int maxResource, long loadNanos) {
+        super(maxResource);
+        this.loadNanos = loadNanos;
     }
 
     @Override
     protected Long getForCache(long key) throws Exception {
+        if (loadNanos > 0) {
+            LockSupport.parkNanos(loadNanos);
+        }
         return key;
     }
 
     @Override
     protected void releaseForCache(Long obj) {}
     
-}
\ No newline at end of file
+}
@@ -47,6 +47,13 @@ public class MockDataItem implements DataItem {
         wLock.unlock();
     }
 
+    @Override
+    public void update(long xid, int offset, byte[] raw) {
+        wLock.lock();
+        System.arraycopy(raw, 0, data.raw, data.start + offset, raw.length);
+        wLock.unlock();
+    }
+
     @Override
     public void release() {}
 
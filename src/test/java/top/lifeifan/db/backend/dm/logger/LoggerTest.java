@@ -3,10 +3,17 @@ package top.lifeifan.db.backend.dm.logger;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
 public class LoggerTest {
     private static final String LOG_FILE = "D:\\lifei\\test_data\\logger_test";
-    private static final String LOG_SUFFIX = ".log";
 
     @Test
     public void testLogger() {
@@ -46,7 +53,250 @@ public class LoggerTest {
 
         lg.close();
 
-        assert new File(LOG_FILE + LOG_SUFFIX).delete();
+        remove(LOG_FILE);
+    }
+
+    @Test
+    public void testConcurrentLog() throws Exception {
+        int threads = 16, logs = 200;
+        Logger writer = Logger.create(LOG_FILE + "_concurrent");
+        CountDownLatch cdl = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int no = t;
+            new Thread(() -> {
+                for (int i = 0; i < logs; i++) {
+                    writer.log((no + ":" + i).getBytes());
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        long cost = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("log: " + threads + " threads, " + threads * logs + " logs in " + cost + "ms, "
+                + (threads * logs * 1000L / Math.max(cost, 1)) + " logs/s");
+        writer.close();
+
+        // 所有日志都能读出，同一线程的日志保持顺序
+        Logger lg = Logger.open(LOG_FILE + "_concurrent");
+        lg.rewind();
+        Map<Integer, Integer> next = new HashMap<>();
+        int count = 0;
+        byte[] log;
+        while ((log = lg.next()) != null) {
+            String[] parts = new String(log).split(":");
+            int no = Integer.parseInt(parts[0]);
+            assert Integer.parseInt(parts[1]) == next.getOrDefault(no, 0);
+            next.put(no, Integer.parseInt(parts[1]) + 1);
+            count++;
+        }
+        assert count == threads * logs;
+        lg.close();
+        remove(LOG_FILE + "_concurrent");
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        String path = LOG_FILE + "_segments";
+        System.setProperty(Logger.SEGMENT_SIZE_OPTION, "128");
+        Logger lg;
+        try {
+            lg = Logger.create(path);
+        } finally {
+            System.clearProperty(Logger.SEGMENT_SIZE_OPTION);
+        }
+        try {
+            long last = 0;
+            for (int i = 0; i < 100; i++) {
+                long lsn = lg.log(("log" + i).getBytes());
+                assert lsn > last;
+                last = lsn;
+            }
+            lg.close();
+            List<Integer> segments = LoggerImpl.listSegments(path);
+            assert segments.size() > 10;
+            File tail = LoggerImpl.segmentFile(path, segments.get(segments.size() - 1));
+            // 段文件预分配到段大小，关闭时没有用上的预分配段被删除
+            assert tail.length() == 128;
+            assert segments.get(segments.size() - 1) == (int) (last / 128);
+
+            // 最后一条日志写了一半，没写完的部分还是预分配的 0
+            try (RandomAccessFile raf = new RandomAccessFile(tail, "rw")) {
+                raf.seek(last % 128 + 8 + "log99".length() - 2);
+                raf.write(new byte[2]);
+            }
+            lg = Logger.open(path);
+            lg.rewind();
+            for (int i = 0; i < 99; i++) {
+                assert ("log" + i).equals(new String(lg.next()));
+            }
+            assert lg.next() == null;
+            lg.log("log99".getBytes());
+            lg.close();
+
+            // 新段的段头写了一半，新段被删除，上一段完整保留
+            // 删除的段会被重新预分配，这里只检查恢复出的日志：恰好是新段之前的所有日志
+            segments = LoggerImpl.listSegments(path);
+            int torn = segments.get(segments.size() - 1);
+            lg = Logger.open(path);
+            lg.rewind();
+            int expected = 0;
+            while (lg.next() != null && lg.lsn() / 128 < torn) {
+                expected++;
+            }
+            lg.close();
+            tail = LoggerImpl.segmentFile(path, torn);
+            try (RandomAccessFile raf = new RandomAccessFile(tail, "rw")) {
+                raf.setLength(10);
+            }
+            lg = Logger.open(path);
+            lg.rewind();
+            int count = 0;
+            byte[] log;
+            while ((log = lg.next()) != null) {
+                assert ("log" + count).equals(new String(log));
+                count++;
+            }
+            assert count == expected && count > 0 && count < 100;
+            // 继续写入后仍能完整读出
+            for (int i = count; i < 100; i++) {
+                lg.log(("log" + i).getBytes());
+            }
+            lg.close();
+            lg = Logger.open(path);
+            lg.rewind();
+            for (int i = 0; i < 100; i++) {
+                assert ("log" + i).equals(new String(lg.next()));
+            }
+            assert lg.next() == null;
+            lg.close();
+        } finally {
+            remove(path);
+        }
+    }
+
+    @Test
+    public void testPurge() {
+        String path = LOG_FILE + "_purge";
+        System.setProperty(Logger.SEGMENT_SIZE_OPTION, "128");
+        Logger lg;
+        try {
+            lg = Logger.create(path);
+        } finally {
+            System.clearProperty(Logger.SEGMENT_SIZE_OPTION);
+        }
+        long[] lsns = new long[100];
+        for (int i = 0; i < 100; i++) {
+            lsns[i] = lg.log(("log" + i).getBytes());
+        }
+        // 删除第 50 条日志所在段之前的段
+        int before = LoggerImpl.listSegments(path).size();
+        lg.purge(lsns[50]);
+        assert LoggerImpl.listSegments(path).size() < before;
+        lg.rewind(lsns[50]);
+        assert "log50".equals(new String(lg.next()));
+        assert lg.lsn() == lsns[50];
+        lg.close();
+
+        lg = Logger.open(path);
+        lg.rewind();
+        byte[] log = lg.next();
+        int first = Integer.parseInt(new String(log).substring(3));
+        assert first <= 50 && lg.lsn() == lsns[first];
+        for (int i = first + 1; i < 100; i++) {
+            assert ("log" + i).equals(new String(lg.next()));
+        }
+        assert lg.next() == null;
+        lg.close();
+        remove(path);
+    }
+
+    @Test
+    public void testReadBuffer() {
+        String path = LOG_FILE + "_buffer";
+        System.setProperty(Logger.SEGMENT_SIZE_OPTION, String.valueOf(4 * LoggerImpl.READ_BUFFER_SIZE));
+        Logger lg;
+        try {
+            lg = Logger.create(path);
+        } finally {
+            System.clearProperty(Logger.SEGMENT_SIZE_OPTION);
+        }
+        // 日志跨过读缓冲的边界，其中一条比读缓冲还大
+        Random random = new Random(0);
+        List<byte[]> logs = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            int size = i == 20 ? LoggerImpl.READ_BUFFER_SIZE + 100 : random.nextInt(LoggerImpl.READ_BUFFER_SIZE / 8);
+            byte[] log = new byte[size];
+            random.nextBytes(log);
+            lg.log(log);
+            logs.add(log);
+        }
+        lg.close();
+
+        lg = Logger.open(path);
+        lg.rewind();
+        for (byte[] log : logs) {
+            assert Arrays.equals(log, lg.next());
+        }
+        assert lg.next() == null;
+        lg.close();
+
+        remove(path);
+    }
+
+    @Test
+    public void testCompression() {
+        String path = LOG_FILE + "_compress";
+        System.setProperty(Logger.COMPRESS_THRESHOLD_OPTION, "64");
+        Logger lg;
+        try {
+            lg = Logger.create(path);
+        } finally {
+            System.clearProperty(Logger.COMPRESS_THRESHOLD_OPTION);
+        }
+        Random random = new Random(0);
+        List<byte[]> logs = new ArrayList<>();
+        // 重复内容多的长日志、低于阈值的短日志、无法压缩的随机日志、长段重复的日志
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("name_").append(i % 7).append(",city_").append(i % 3).append(';');
+        }
+        logs.add(sb.toString().getBytes());
+        logs.add("short".getBytes());
+        byte[] noise = new byte[500];
+        random.nextBytes(noise);
+        logs.add(noise);
+        byte[] zeros = new byte[3000];
+        zeros[1500] = 1;
+        logs.add(zeros);
+
+        long before = lg.nextLsn();
+        for (byte[] log : logs) {
+            lg.log(log);
+        }
+        long raw = 0;
+        for (byte[] log : logs) {
+            raw += 8 + log.length;
+        }
+        assert lg.nextLsn() - before < raw / 2;
+        lg.close();
+
+        // 不压缩的实例也能读出压缩的日志
+        lg = Logger.open(path);
+        lg.rewind();
+        for (byte[] log : logs) {
+            assert Arrays.equals(log, lg.next());
+        }
+        assert lg.next() == null;
+        lg.close();
+
+        remove(path);
+    }
+
+    private void remove(String path) {
+        for (int no : LoggerImpl.listSegments(path)) {
+            assert LoggerImpl.segmentFile(path, no).delete();
+        }
     }
 
 }
@@ -37,6 +37,14 @@ public class MockPage implements Page {
         return false;
     }
 
+    @Override
+    public void setRecLsn(long lsn) {}
+
+    @Override
+    public long getRecLsn() {
+        return 0;
+    }
+
     @Override
     public int getPageNumber() {
         return pgno;
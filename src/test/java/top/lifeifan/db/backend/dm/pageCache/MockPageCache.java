@@ -1,5 +1,6 @@
 package top.lifeifan.db.backend.dm.pageCache;
 
+import top.lifeifan.db.backend.common.CacheStats;
 import top.lifeifan.db.backend.dm.page.MockPage;
 import top.lifeifan.db.backend.dm.page.Page;
 
@@ -55,4 +56,20 @@ public class MockPageCache implements PageCache{
     @Override
     public void flushPage(Page pg) {}
 
+    @Override
+    public void flushAll() {}
+
+    @Override
+    public long minRecLsn() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void prefetch(int pgno, int count) {}
+
+    @Override
+    public CacheStats getStats() {
+        return new CacheStats("MockPageCache", 0, 0, 0, cache.size(), 0, 0, 0, 0, 0, 0);
+    }
+
 }
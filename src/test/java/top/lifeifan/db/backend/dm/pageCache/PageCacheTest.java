@@ -1,11 +1,13 @@
 package top.lifeifan.db.backend.dm.pageCache;
 
 import org.junit.Test;
+import top.lifeifan.db.backend.common.CacheStats;
 import top.lifeifan.db.backend.dm.page.Page;
 import top.lifeifan.db.backend.utils.Panic;
 import top.lifeifan.db.backend.utils.RandomUtil;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Random;
@@ -43,6 +45,274 @@ public class PageCacheTest {
         assert new File(FILE_PC_TEST + 0 + ".db").delete();
     }
 
+    @Test
+    public void testPageCacheEviction() throws Exception {
+        // 10 个页框承载 100 个页面，脏页在淘汰时写回
+        PageCache pc = PageCache.create(FILE_PC_TEST + 4, PageCache.PAGE_SIZE * 10);
+        for(int i = 0; i < 100; i ++) {
+            int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+            Page pg = pc.getPage(pgno);
+            pg.setDirty(true);
+            pg.getData()[1] = (byte)i;
+            pg.release();
+        }
+        for(int i = 1; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[1] == (byte)(i-1);
+            pg.release();
+        }
+
+        // 所有页框都被引用时无法淘汰
+        Page[] pinned = new Page[10];
+        for(int i = 0; i < 10; i ++) {
+            pinned[i] = pc.getPage(i + 1);
+        }
+        boolean full = false;
+        try {
+            pc.getPage(11);
+        } catch (Exception e) {
+            full = true;
+        }
+        assert full;
+        for(Page pg : pinned) {
+            pg.release();
+        }
+        pc.close();
+
+        pc = PageCache.open(FILE_PC_TEST + 4, PageCache.PAGE_SIZE * 10);
+        for(int i = 1; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[1] == (byte)(i-1);
+            pg.release();
+        }
+        pc.close();
+        assert new File(FILE_PC_TEST + 4 + ".db").delete();
+    }
+
+    @Test
+    public void testBackgroundFlush() throws Exception {
+        PageCache pc = PageCache.create(FILE_PC_TEST + 5, PageCache.PAGE_SIZE * 20, 50, 0.25);
+        for(int i = 0; i < 10; i ++) {
+            int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+            Page pg = pc.getPage(pgno);
+            pg.setDirty(true);
+            pg.getData()[1] = (byte)(i + 1);
+            pg.release();
+        }
+        // 未关闭缓存，脏页由后台线程写回
+        Thread.sleep(500);
+        try (RandomAccessFile raf = new RandomAccessFile(FILE_PC_TEST + 5 + ".db", "r")) {
+            for(int i = 0; i < 10; i ++) {
+                raf.seek((long) i * PageCache.PAGE_SIZE + 1);
+                assert raf.readByte() == (byte)(i + 1);
+            }
+        }
+        pc.close();
+        assert new File(FILE_PC_TEST + 5 + ".db").delete();
+    }
+
+    /**
+     * 多线程随机读页面的基准，缓存远小于文件，绝大多数读取都会落到文件上
+     */
+    @Test
+    public void testConcurrentReadBenchmark() throws Exception {
+        readBenchmark(FILE_PC_TEST + 6, false);
+        readBenchmark(FILE_PC_TEST + 7, true);
+    }
+
+    private void readBenchmark(String path, boolean mmap) throws Exception {
+        int pages = 2000, threads = 8, reads = 20000;
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 64, mmap);
+        for(int i = 0; i < pages; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        AtomicInteger errors = new AtomicInteger(0);
+        CountDownLatch cdl = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                Random r = new Random();
+                for(int i = 0; i < reads; i ++) {
+                    int pgno = r.nextInt(pages) + 1;
+                    try {
+                        Page pg = pc.getPage(pgno);
+                        if(pg.getData()[0] != (byte)(pgno - 1)) {
+                            errors.incrementAndGet();
+                        }
+                        pg.release();
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        long cost = (System.nanoTime() - start) / 1_000_000;
+        System.out.println((mmap ? "mmap " : "") + "page read: " + threads + " threads, " + threads * reads + " reads in "
+                + cost + "ms, " + (threads * reads * 1000L / Math.max(cost, 1)) + " reads/s");
+        pc.close();
+        assert errors.get() == 0;
+        assert new File(path + ".db").delete();
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        PageCache pc = PageCache.create(FILE_PC_TEST + 9, PageCache.PAGE_SIZE * 64);
+        for(int i = 0; i < 200; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        // 单核机器上默认不预读，这里显式打开
+        System.setProperty(PageCache.READ_AHEAD_OPTION, String.valueOf(PagePrefetcher.DEFAULT_WINDOW));
+        PageCacheImpl pci;
+        try {
+            pci = PageCache.open(FILE_PC_TEST + 9, PageCache.PAGE_SIZE * 64,
+                    PageFlusher.DEFAULT_INTERVAL, PageFlusher.DEFAULT_DIRTY_RATIO);
+        } finally {
+            System.clearProperty(PageCache.READ_AHEAD_OPTION);
+        }
+        // 顺序扫描触发预读，预读的页面内容正确，每页停顿 1ms 模拟处理记录的开销
+        for(int i = 1; i <= 200; i ++) {
+            Page pg = pci.getPage(i);
+            assert pg.getData()[0] == (byte)(i-1);
+            pg.release();
+            Thread.sleep(1);
+        }
+        long sequential = pci.prefetchedPages();
+        assert sequential > 0;
+
+        // 随机访问不触发预读，hint 直接指定预读的页面
+        pci.getPage(50).release();
+        pci.getPage(10).release();
+        pci.prefetch(100, 8);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(pci.prefetchedPages() < sequential + 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assert pci.prefetchedPages() == sequential + 8;
+        for(int i = 100; i < 108; i ++) {
+            Page pg = pci.getPage(i);
+            assert pg.getData()[0] == (byte)(i-1);
+            pg.release();
+        }
+        pci.close();
+        assert new File(FILE_PC_TEST + 9 + ".db").delete();
+    }
+
+    @Test
+    public void testPrefetchNewPages() throws Exception {
+        PageCacheImpl pci = PageCache.create(FILE_PC_TEST + 11, PageCache.PAGE_SIZE * 64,
+                PageFlusher.DEFAULT_INTERVAL, PageFlusher.DEFAULT_DIRTY_RATIO);
+        // 预读线程一直读取最后一页，计入页数的页面都应已写入，不会缓存全 0 的页面
+        CountDownLatch done = new CountDownLatch(1);
+        Thread prefetcher = new Thread(() -> {
+            while (done.getCount() > 0) {
+                pci.prefetchPage(pci.getPageNumber());
+            }
+        });
+        prefetcher.start();
+        for(int i = 0; i < 2000; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = 1;
+            int pgno = pci.newPage(tmp);
+            Page pg = pci.getPage(pgno);
+            assert pg.getData()[0] == 1;
+            pg.release();
+        }
+        done.countDown();
+        prefetcher.join();
+        pci.close();
+        assert new File(FILE_PC_TEST + 11 + ".db").delete();
+    }
+
+    @Test
+    public void testScanResistance() throws Exception {
+        PageCache pc = PageCache.create(FILE_PC_TEST + 10, PageCache.PAGE_SIZE * 64);
+        for(int i = 0; i < 600; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        // 点查：每次都经过页 1~8（相当于 B+ 树的内部节点），再访问一个随机的叶子页
+        Random r = new Random(1);
+        for(int i = 0; i < 2000; i ++) {
+            for(int j = 1; j <= 8; j ++) {
+                pc.getPage(j).release();
+            }
+            pc.getPage(r.nextInt(592) + 9).release();
+        }
+        // 全表扫描
+        for(int i = 9; i <= 600; i ++) {
+            pc.getPage(i).release();
+        }
+        CacheStats before = pc.getStats();
+        for(int j = 1; j <= 8; j ++) {
+            pc.getPage(j).release();
+        }
+        CacheStats after = pc.getStats();
+        // 热点页面全部命中
+        assert after.getMisses() == before.getMisses();
+        assert after.getHits() == before.getHits() + 8;
+        assert after.getEvictions() > 0;
+        pc.close();
+        assert new File(FILE_PC_TEST + 10 + ".db").delete();
+    }
+
+    @Test
+    public void testMappedPageCache() throws Exception {
+        // 两个完整的段加上文件末尾未映射的部分
+        int pages = MappedPageCache.SEGMENT_PAGES * 2 + 10;
+        PageCache pc = PageCache.create(FILE_PC_TEST + 8, PageCache.PAGE_SIZE * 10, true);
+        for(int i = 0; i < pages; i ++) {
+            int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+            Page pg = pc.getPage(pgno);
+            pg.setDirty(true);
+            pg.getData()[1] = (byte)i;
+            pg.release();
+        }
+        for(int i = 1; i <= pages; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[1] == (byte)(i-1);
+            pg.release();
+        }
+        pc.close();
+        // 映射不会改变文件长度
+        assert new File(FILE_PC_TEST + 8 + ".db").length() == (long) pages * PageCache.PAGE_SIZE;
+
+        pc = PageCache.open(FILE_PC_TEST + 8, PageCache.PAGE_SIZE * 10, true);
+        assert pc.getPageNumber() == pages;
+        for(int i = 1; i <= pages; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[1] == (byte)(i-1);
+            pg.release();
+        }
+        pc.truncateByPageNo(MappedPageCache.SEGMENT_PAGES + 5);
+        int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        assert pgno == MappedPageCache.SEGMENT_PAGES + 6;
+        Page pg = pc.getPage(pgno);
+        assert pg.getData()[1] == 0;
+        pg.release();
+        // 截掉的段已解除映射，重新写满之后按新的内容映射
+        while (pgno < MappedPageCache.SEGMENT_PAGES * 2) {
+            pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pg = pc.getPage(pgno);
+        assert pg.getData()[1] == 0;
+        pg.setDirty(true);
+        pg.getData()[1] = 7;
+        pg.release();
+        pg = pc.getPage(pgno);
+        assert pg.getData()[1] == 7;
+        pg.release();
+        pc.close();
+        assert new File(FILE_PC_TEST + 8 + ".db").length() == (long) pgno * PageCache.PAGE_SIZE;
+        assert new File(FILE_PC_TEST + 8 + ".db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
@@ -8,6 +8,7 @@ import top.lifeifan.db.backend.tm.TransactionManager;
 
 import java.io.File;
 import java.util.List;
+import java.util.regex.Pattern;
 
 public class BPlusTreeTest {
     @Test
@@ -31,7 +32,14 @@ public class BPlusTreeTest {
             }
         } finally {
             assert new File("D:\\Projects\\MYDB\\TestTreeSingle.db").delete();
-            assert new File("D:\\Projects\\MYDB\\TestTreeSingle.log").delete();
+            // 日志可能已经按检查点删掉了前面的段
+            File base = new File("D:\\Projects\\MYDB\\TestTreeSingle").getAbsoluteFile();
+            File[] logs = base.getParentFile().listFiles(
+                    (dir, name) -> name.matches(Pattern.quote(base.getName()) + "_\\d{8}\\.log"));
+            assert logs != null && logs.length > 0;
+            for (File log : logs) {
+                assert log.delete();
+            }
         }
 
     }
@@ -85,6 +85,13 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testShowStats() throws Exception {
+        Show show = (Show) Parser.Parse("show stats".getBytes());
+        assert show.stats;
+        assert !((Show) Parser.Parse("show".getBytes())).stats;
+    }
+
     @Test
     public void testUpdate() throws Exception {
         String stat = "update student set name = \"GZY\" where id = 5";
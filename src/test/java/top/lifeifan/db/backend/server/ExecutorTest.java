@@ -3,11 +3,17 @@ package top.lifeifan.db.backend.server;
 import org.junit.Test;
 import top.lifeifan.db.backend.dm.DataManager;
 import top.lifeifan.db.backend.tbm.TableManager;
+import top.lifeifan.db.backend.tbm.TableManagerImpl;
 import top.lifeifan.db.backend.tm.TransactionManager;
 import top.lifeifan.db.backend.vm.VersionManager;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
 
 public class ExecutorTest {
     String path = "C:\\Users\\lifeifan\\Documents\\db2023\\test_executor";
@@ -39,7 +45,33 @@ public class ExecutorTest {
         testInsert(exe, 10000, 1);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        removeLogs();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testShowStats() throws Exception {
+        Executor exe = testCreate();
+        testInsert(exe, 100, 1);
+        exe.execute("select * from test_table".getBytes());
+        String stats = new String(exe.execute("show stats".getBytes()));
+        System.out.println(stats);
+        assert stats.contains("PageCacheImpl#");
+        assert stats.contains("DataManagerImpl#");
+        assert stats.contains("VersionManagerImpl#");
+
+        // 每个缓存同时注册为 JMX MBean
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> names = server.queryNames(new ObjectName("top.lifeifan.db:type=Cache,name=PageCacheImpl,*"), null);
+        assert !names.isEmpty();
+        long hits = 0;
+        for (ObjectName name : names) {
+            hits += (Long) server.getAttribute(name, "Hits");
+        }
+        assert hits > 0;
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        removeLogs();
         new File(path + ".xid").delete();
     }
 
@@ -71,7 +103,74 @@ public class ExecutorTest {
         testMultiInsert(10000, 4);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        removeLogs();
         new File(path + ".xid").delete();
     }
+
+    @Test
+    public void testFreeze() throws Exception {
+        // 每段 64 个事务，200 多个事务之后前几段可以删除
+        System.setProperty(TransactionManager.SEGMENT_XIDS_OPTION, "64");
+        try {
+            TransactionManager tm = TransactionManager.create(path);
+            DataManager dm = DataManager.create(path, mem, tm);
+            TableManager tbm = TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+            Executor exe = new Executor(tbm);
+            exe.execute(CREATE_TABLE);
+            for (int i = 0; i < 10; i++) {
+                exe.execute(("insert into test_table values " + i).getBytes());
+            }
+            // 回滚的插入、提交的删除和回滚的删除，这些事务所在的段之后会被删除
+            exe.execute("begin".getBytes());
+            exe.execute("insert into test_table values 1000".getBytes());
+            exe.execute("abort".getBytes());
+            exe.execute("begin".getBytes());
+            exe.execute("delete from test_table where id = 1".getBytes());
+            exe.execute("commit".getBytes());
+            exe.execute("begin".getBytes());
+            exe.execute("delete from test_table where id = 2".getBytes());
+            exe.execute("abort".getBytes());
+            for (int i = 10; i < 200; i++) {
+                exe.execute(("insert into test_table values " + i).getBytes());
+            }
+            byte[] SELECT = "select * from test_table".getBytes();
+            String expected = new String(exe.execute(SELECT));
+            assert !expected.contains("[1]") && expected.contains("[2]") && !expected.contains("[1000]");
+
+            // 删除的段中的事务都视为已提交，冻结之后结果不变
+            tbm.close();
+            long horizon = ((TableManagerImpl) tbm).freeze();
+            assert horizon > 200;
+            assert !new File(path + "_00000000.xid").exists();
+            assert !new File(path + "_00000002.xid").exists();
+            assert expected.equals(new String(exe.execute(SELECT)));
+
+            tm.close();
+            dm.close();
+            tm = TransactionManager.open(path);
+            dm = DataManager.open(path, mem, tm);
+            tbm = TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm);
+            assert expected.equals(new String(new Executor(tbm).execute(SELECT)));
+            tbm.close();
+            dm.close();
+            tm.close();
+        } finally {
+            System.clearProperty(TransactionManager.SEGMENT_XIDS_OPTION);
+            new File(path + ".db").delete();
+            new File(path + ".bt").delete();
+            removeLogs();
+            new File(path + ".xid").delete();
+        }
+    }
+
+    private void removeLogs() {
+        File base = new File(path).getAbsoluteFile();
+        File[] logs = base.getParentFile().listFiles(
+                (dir, name) -> name.matches(Pattern.quote(base.getName()) + "_\\d{8}\\.(log|xid)"));
+        if (logs != null) {
+            for (File log : logs) {
+                log.delete();
+            }
+        }
+    }
 }
@@ -37,6 +37,9 @@ public class MockTransactionManager implements TransactionManager {
         return true;
     }
 
+    @Override
+    public void purge(long xid) {}
+
     @Override
     public void close() {}
     
@@ -3,7 +3,16 @@ package top.lifeifan.db.backend.tm;
 import org.junit.After;
 import org.junit.Test;
 
+import top.lifeifan.db.backend.common.CacheMonitor;
+import top.lifeifan.db.backend.common.CacheStats;
+import top.lifeifan.db.backend.utils.Parser;
+
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 public class TransactionManagerTest {
 
@@ -52,8 +61,168 @@ public class TransactionManagerTest {
         tm.close();
     }
 
+    @Test
+    public void testReopen() {
+        tm = TransactionManager.create(TEST_PATH);
+        long committed = tm.begin();
+        long aborted = tm.begin();
+        long active = tm.begin();
+        tm.commit(committed);
+        tm.abort(aborted);
+        tm.close();
+
+        // 重新打开后从文件加载状态表
+        tm = TransactionManager.open(TEST_PATH);
+        assert tm.isCommitted(committed) && !tm.isActive(committed) && !tm.isAborted(committed);
+        assert tm.isAborted(aborted) && !tm.isCommitted(aborted);
+        assert tm.isActive(active) && !tm.isCommitted(active);
+        // 重新打开后从已预留的 XID 之后分配，之前预留但没有用到的 XID 被跳过
+        assert tm.begin() == TransactionManagerImpl.XID_BLOCK + 1;
+        tm.close();
+    }
+
+    @Test
+    public void testConcurrentCommit() throws Exception {
+        int threads = 16, txns = 50;
+        tm = TransactionManager.create(TEST_PATH);
+        Map<Long, Boolean> committed = new ConcurrentHashMap<>();
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < txns; i++) {
+                    long xid = tm.begin();
+                    // 并发提交和回滚在同一批次中落盘
+                    if (xid % 3 == 0) {
+                        tm.abort(xid);
+                    } else {
+                        tm.commit(xid);
+                    }
+                    committed.put(xid, xid % 3 != 0);
+                    assert tm.isCommitted(xid) == (xid % 3 != 0);
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        tm.close();
+
+        tm = TransactionManager.open(TEST_PATH);
+        assert committed.size() == threads * txns;
+        for (Map.Entry<Long, Boolean> e : committed.entrySet()) {
+            assert tm.isCommitted(e.getKey()) == e.getValue();
+            assert tm.isAborted(e.getKey()) != e.getValue();
+        }
+        tm.close();
+    }
+
+    @Test
+    public void testSegments() {
+        System.setProperty(TransactionManager.SEGMENT_XIDS_OPTION, "2048");
+        System.setProperty(TransactionManager.CACHE_SEGMENTS_OPTION, "2");
+        try {
+            tm = TransactionManager.create(TEST_PATH);
+        } finally {
+            System.clearProperty(TransactionManager.SEGMENT_XIDS_OPTION);
+            System.clearProperty(TransactionManager.CACHE_SEGMENTS_OPTION);
+        }
+        int n = 5000;
+        for (int i = 1; i <= n; i++) {
+            long xid = tm.begin();
+            if (xid % 3 == 1) {
+                tm.commit(xid);
+            } else if (xid % 3 == 2) {
+                tm.abort(xid);
+            }
+        }
+        tm.close();
+
+        // 每个事务 2 位，每段 2048 个事务占 512 字节
+        List<Integer> segments = StatusCache.listSegments(TEST_PATH);
+        assert segments.size() == 3;
+        for (int no : segments) {
+            assert StatusCache.segmentFile(TEST_PATH, no).length() == 512;
+        }
+        assert new File(TEST_PATH + XID_FILE_SUFFIX).length() == TransactionManager.XID_HEADER_LENGTH;
+
+        // 段大小由段文件确定，缓存只有 2 段，跨段读取时淘汰
+        System.setProperty(TransactionManager.CACHE_SEGMENTS_OPTION, "2");
+        try {
+            tm = TransactionManager.open(TEST_PATH);
+        } finally {
+            System.clearProperty(TransactionManager.CACHE_SEGMENTS_OPTION);
+        }
+        for (long xid = n; xid >= 1; xid--) {
+            assert tm.isCommitted(xid) == (xid % 3 == 1);
+            assert tm.isAborted(xid) == (xid % 3 == 2);
+            assert tm.isActive(xid) == (xid % 3 == 0);
+        }
+
+        // 删除之前的段后，其中的事务视为已提交
+        tm.purge(4500);
+        assert StatusCache.listSegments(TEST_PATH).size() == 1;
+        assert tm.isCommitted(2) && !tm.isAborted(2L);
+        assert tm.isAborted(4097L) && tm.isActive(4098L);
+        tm.close();
+        tm = TransactionManager.open(TEST_PATH);
+        assert tm.isCommitted(2) && tm.isAborted(4097L);
+        tm.close();
+    }
+
+    @Test
+    public void testPurgeLoaded() {
+        System.setProperty(TransactionManager.SEGMENT_XIDS_OPTION, "2048");
+        try {
+            tm = TransactionManager.create(TEST_PATH);
+        } finally {
+            System.clearProperty(TransactionManager.SEGMENT_XIDS_OPTION);
+        }
+        for (int i = 1; i <= 5000; i++) {
+            tm.commit(tm.begin());
+        }
+        // 读取前两段，使其留在缓存中
+        assert tm.isCommitted(2) && tm.isCommitted(2049);
+        assert statusSegments() == 3;
+
+        // 删除的段先从缓存中移出并关闭段文件
+        tm.purge(4500);
+        assert StatusCache.listSegments(TEST_PATH).size() == 1;
+        assert statusSegments() == 1;
+        assert tm.isCommitted(2) && tm.isCommitted(4500);
+        tm.close();
+    }
+
+    /**
+     * @return 缓存中的状态段数
+     */
+    private static int statusSegments() {
+        int res = 0;
+        for (CacheStats s : CacheMonitor.snapshot()) {
+            if (s.getName().startsWith(StatusCache.class.getSimpleName() + "#")) {
+                res += s.getResident();
+            }
+        }
+        return res;
+    }
+
+    @Test
+    public void testMigrate() throws Exception {
+        // 每个事务占 1 字节的旧格式：3 个事务分别为已提交、已回滚、活跃
+        try (RandomAccessFile raf = new RandomAccessFile(TEST_PATH + XID_FILE_SUFFIX, "rw")) {
+            raf.write(Parser.long2Byte(3L));
+            raf.write(new byte[]{1, 2, 0});
+        }
+        tm = TransactionManager.open(TEST_PATH);
+        assert new File(TEST_PATH + XID_FILE_SUFFIX).length() == TransactionManager.XID_HEADER_LENGTH;
+        assert tm.isCommitted(1) && tm.isAborted(2L) && tm.isActive(3L);
+        assert tm.begin() == 4;
+        tm.close();
+    }
+
     @After
     public void clear() {
         assert new File(TEST_PATH + XID_FILE_SUFFIX).delete();
+        for (int no : StatusCache.listSegments(TEST_PATH)) {
+            StatusCache.segmentFile(TEST_PATH, no).delete();
+        }
     }
 }